@@ -3,40 +3,102 @@ package com.networking;
 import com.networking.config.*;
 import com.networking.misc.*;
 import com.networking.model.*;
+import com.networking.net.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 /**
- * Starts up a BitTorrent client with the given peer id.
+ * Starts up a BitTorrent client with the given peer id, or the network
+ * emulating relay when given "relay", or the tracker when given "tracker".
+ * With a tracker, peers that aren't in PeerInfo.cfg can join by also giving
+ * their host and port. Ending the arguments with "stream <file>" also
+ * writes the file out in order while it downloads, "-" meaning stdout.
  */
 public class Bootstrap {
     public static final boolean DEBUG = false;
+    private static final int STREAM_DRAIN_MS = 10000; // how long exiting waits for the streamer
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("relay")) {
+            new Relay().run();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("tracker")) {
+            new Tracker().run();
+            return;
+        }
         // Look through the peer configs for our config
         PeerConfig clientCfg = null;
         int peerId = -1;
+        String streamTo = null;
         try {
+            int nargs = args.length;
+            if (nargs >= 3 && args[nargs-2].equals("stream")) {
+                streamTo = args[nargs-1];
+                nargs -= 2;
+            }
             peerId = Integer.parseInt(args[0]);
-            for (PeerConfig cfg : PeerConfig.PEER_CONFIGS) {
-                /* If we find it, remember it and break */
-                if (cfg.getPeerID() == peerId) {
-                    clientCfg = cfg;
-                    break;
-                }
+            clientCfg = PeerConfig.find(peerId);
+            if (clientCfg == null && nargs >= 3 && CommonConfig.getTrackerPort() != 0) {
+                // joining through the tracker, without the file
+                clientCfg = new PeerConfig(peerId, args[1], Integer.parseInt(args[2]), false);
             }
             /* If we didn't find it, terminate with exception */
             if (clientCfg == null) throw new Exception();
         } catch (Exception ex) {
-            System.out.println("Example Usage: <run program> [peerId]");
+            System.out.println("Example Usage: <run program> [peerId [host port] [stream <file|->] | relay | tracker]");
             Bootstrap.stackExit(ex);
         }
         // Give the logger our id for log file creation
         Logger.INSTANCE.giveID(peerId);
+        if (CommonConfig.getWireTraceSize() > 0) {
+            WireTrace.INSTANCE.open(peerId, CommonConfig.getWireTraceSize());
+        }
 
         // Create and run the client with its config
         Client cl = new Client(clientCfg);
+        if (streamTo != null) startStreamer(cl, streamTo);
         cl.run();
     }
 
+    private static void startStreamer(final Client cl, final String streamTo) {
+        final Thread streamer = new Thread("Streamer Thread") {
+            public void run() {
+                try {
+                    WritableByteChannel out = streamTo.equals("-")
+                            ? Channels.newChannel(System.out)
+                            : new FileOutputStream(streamTo).getChannel();
+                    ReadableByteChannel in = cl.openChannel();
+                    ByteBuffer buf = ByteBuffer.allocate(64*1024);
+                    while (in.read(buf) != -1) {
+                        buf.flip();
+                        while (buf.hasRemaining()) out.write(buf);
+                        buf.clear();
+                    }
+                    out.close();
+                    Logger.INSTANCE.println("Peer <" + cl.getClientID() + "> finished streaming the file to " + streamTo + ".");
+                } catch (IOException ex) {
+                    Logger.INSTANCE.println("Peer <" + cl.getClientID() + "> stopped streaming: " + ex);
+                }
+            }
+        };
+        streamer.setDaemon(true);
+        streamer.start();
+        // the client exits once the swarm is done, which can be before
+        // we're done writing. exiting on an error doesn't wait for pieces
+        // that will never come, and a stalled reader can't hold us forever
+        Runtime.getRuntime().addShutdownHook(new Thread("Streamer Shutdown Thread") {
+            public void run() {
+                if (cl.getNumMissingPieces() != 0) return;
+                try {
+                    streamer.join(STREAM_DRAIN_MS);
+                } catch (InterruptedException ex) { }
+            }
+        });
+    }
+
     public static void stackExit(Exception ex) {
         if (DEBUG) ex.printStackTrace();
         System.exit(1);
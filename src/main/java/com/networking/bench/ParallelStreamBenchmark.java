@@ -0,0 +1,125 @@
+package com.networking.bench;
+
+import com.networking.net.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Measures piece throughput over 1..K parallel streams on a simulated high
+ * bandwidth-delay link. A relay between the two ends delays every chunk by
+ * half the RTT in each direction and caps the shared bandwidth, and each
+ * stream keeps one request in flight, same as the peers do.
+ *
+ * Usage: java -cp project.jar com.networking.bench.ParallelStreamBenchmark [rttMs] [mbitPerSec] [pieceSize] [seconds] [tcpNoDelay]
+ */
+public class ParallelStreamBenchmark {
+    private static boolean noDelay; // same as TcpNoDelay in Common.cfg
+
+    public static void main(String[] args) throws Exception {
+        int rtt = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int mbit = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int pieceSize = args.length > 2 ? Integer.parseInt(args[2]) : 65536;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        noDelay = args.length > 4 ? args[4].equals("1") : true;
+
+        ServerSocket seed = new ServerSocket(0);
+        startSeed(seed, pieceSize);
+        ServerSocket relay = new ServerSocket(0);
+        startRelay(relay, seed.getLocalPort(), rtt/2, 1L*mbit*1000*1000/8);
+
+        System.out.printf("rtt %d ms, link %d Mbit/s, piece %d bytes, bdp %d KB, nodelay %b%n",
+                rtt, mbit, pieceSize, 1L*mbit*1000*1000/8*rtt/1000/1024, noDelay);
+        for (int streams = 1; streams <= 8; streams *= 2) {
+            double mbps = run(relay.getLocalPort(), streams, seconds);
+            System.out.printf("%d stream(s): %7.2f Mbit/s%n", streams, mbps);
+        }
+        System.exit(0);
+    }
+
+    private static double run(int port, int streams, int seconds) throws Exception {
+        final long until = System.currentTimeMillis() + 1000L*seconds;
+        final long[] received = new long[streams];
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int s = 0; s < streams; s++) {
+            final int idx = s;
+            Socket socket = new Socket("localhost", port);
+            socket.setTcpNoDelay(noDelay);
+            final Connection conn = new Connection(socket);
+            workers.add(new Thread("Bench Stream " + s) {
+                public void run() {
+                    try {
+                        int piece = 0;
+                        while (System.currentTimeMillis() < until) {
+                            conn.sendPacket(new Packet(Packet.PacketType.REQUEST, Packet.serializeInt(piece++)));
+                            Packet p = conn.readPacket();
+                            if (p == null) break;
+                            received[idx] += p.getPayload().length;
+                        }
+                    } catch (IOException ex) { }
+                    conn.close();
+                }
+            });
+        }
+        for (Thread w : workers) w.start();
+        for (Thread w : workers) w.join();
+        long total = 0;
+        for (long r : received) total += r;
+        return 8.*total/seconds/1000/1000;
+    }
+
+    // answers every request with a piece of the requested size
+    private static void startSeed(final ServerSocket server, final int pieceSize) {
+        new Thread("Bench Seed") {
+            public void run() {
+                while (true) {
+                    try {
+                        Socket socket = server.accept();
+                        socket.setTcpNoDelay(noDelay);
+                        final Connection conn = new Connection(socket);
+                        new Thread("Bench Seed Stream") {
+                            public void run() {
+                                byte[] piece = new byte[pieceSize];
+                                try {
+                                    while (true) {
+                                        Packet req = conn.readPacket();
+                                        if (req == null) break;
+                                        byte[] payload = Packet.mergePayloads(req.getPayload(), piece);
+                                        conn.sendPacket(new Packet(Packet.PacketType.PIECE, payload));
+                                    }
+                                } catch (IOException ex) { }
+                                conn.close();
+                            }
+                        }.start();
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            }
+        }.start();
+    }
+
+    // forwards connections to the seed, adding delay and sharing one bandwidth cap
+    private static void startRelay(final ServerSocket server, final int seedPort,
+            int delayMs, long bytesPerSec) {
+        final Link upLink = new Link(delayMs, 0, bytesPerSec, 0., 1);
+        final Link downLink = new Link(delayMs, 0, bytesPerSec, 0., 2);
+        new Thread("Bench Relay") {
+            public void run() {
+                while (true) {
+                    try {
+                        Socket down = server.accept();
+                        Socket up = new Socket("localhost", seedPort);
+                        down.setTcpNoDelay(noDelay);
+                        up.setTcpNoDelay(noDelay);
+                        new DelayPipe(down, up, upLink).start(null);
+                        new DelayPipe(up, down, downLink).start(null);
+                    } catch (IOException ex) {
+                        return;
+                    }
+                }
+            }
+        }.start();
+    }
+}
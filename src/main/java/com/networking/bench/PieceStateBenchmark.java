@@ -0,0 +1,121 @@
+package com.networking.bench;
+
+import com.networking.model.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Measures piece state throughput with many peer threads hammering it at
+ * once, comparing PieceState against the old single-lock BitSet approach.
+ *
+ * Usage: java -cp project.jar com.networking.bench.PieceStateBenchmark [threads] [pieces] [seconds]
+ */
+public class PieceStateBenchmark {
+
+    // what Client used to do: one lock around a BitSet and the piece rows
+    private static class LockedPieceState {
+        private final Object BITFIELD_LOCK = new Object();
+        private final BitSet piecesObtained;
+        private final byte[][] fileMap;
+        private final int numPieces;
+
+        LockedPieceState(int numPieces) {
+            this.numPieces = numPieces;
+            piecesObtained = new BitSet(numPieces);
+            fileMap = new byte[numPieces][];
+        }
+
+        boolean hasPiece(int pieceID) {
+            synchronized (BITFIELD_LOCK) {
+                return piecesObtained.get(pieceID);
+            }
+        }
+
+        byte[] getPiece(int pieceID) {
+            synchronized (BITFIELD_LOCK) {
+                return fileMap[pieceID];
+            }
+        }
+
+        int getNumMissingPieces() {
+            synchronized (BITFIELD_LOCK) {
+                return numPieces - piecesObtained.cardinality();
+            }
+        }
+
+        void setPiece(int pieceID, byte[] pieceArr) {
+            synchronized (BITFIELD_LOCK) {
+                piecesObtained.set(pieceID, true);
+                fileMap[pieceID] = pieceArr;
+            }
+        }
+    }
+
+    private interface Ops {
+        boolean hasPiece(int pieceID);
+        byte[] getPiece(int pieceID);
+        int getNumMissingPieces();
+        void setPiece(int pieceID, byte[] pieceArr);
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int pieces = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        final LockedPieceState locked = new LockedPieceState(pieces);
+        final PieceState lockFree = new PieceState(pieces);
+
+        long lockedOps = run("BITFIELD_LOCK", threads, pieces, seconds, new Ops() {
+            public boolean hasPiece(int i) { return locked.hasPiece(i); }
+            public byte[] getPiece(int i) { return locked.getPiece(i); }
+            public int getNumMissingPieces() { return locked.getNumMissingPieces(); }
+            public void setPiece(int i, byte[] arr) { locked.setPiece(i, arr); }
+        });
+        long lockFreeOps = run("PieceState", threads, pieces, seconds, new Ops() {
+            public boolean hasPiece(int i) { return lockFree.hasPiece(i); }
+            public byte[] getPiece(int i) { return lockFree.getPiece(i); }
+            public int getNumMissingPieces() { return lockFree.getNumMissingPieces(); }
+            public void setPiece(int i, byte[] arr) { lockFree.setPiece(i, arr); }
+        });
+        System.out.printf("speedup: %.2fx%n", 1.*lockFreeOps/Math.max(1, lockedOps));
+    }
+
+    private static long run(String name, int threads, final int pieces,
+            int seconds, final Ops ops) throws InterruptedException {
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicLong totalOps = new AtomicLong();
+        ArrayList<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers.add(new Thread("Bench Peer Thread " + t) {
+                public void run() {
+                    Random rand = new Random(seed);
+                    byte[] piece = new byte[16];
+                    long count = 0;
+                    while (!stop.get()) {
+                        // roughly what a peer thread does per received packet:
+                        // a bitfield scan, a couple of lookups, sometimes a store
+                        int base = rand.nextInt(pieces);
+                        for (int i = 0; i < 32; i++) {
+                            ops.hasPiece((base+i) % pieces);
+                        }
+                        ops.getPiece(base);
+                        ops.getNumMissingPieces();
+                        if (rand.nextInt(64) == 0) ops.setPiece(base, piece);
+                        count += 35;
+                    }
+                    totalOps.addAndGet(count);
+                }
+            });
+        }
+        for (Thread w : workers) w.start();
+        Thread.sleep(1000L*seconds);
+        stop.set(true);
+        for (Thread w : workers) w.join();
+        long perSec = totalOps.get()/seconds;
+        System.out.printf("%-14s %3d threads: %,d ops/s%n", name, threads, perSec);
+        return perSec;
+    }
+}
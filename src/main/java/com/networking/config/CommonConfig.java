@@ -14,9 +14,45 @@ public class CommonConfig {
     private static final String PIECE_SIZE = "PieceSize";
     private static final String FILE = "FileName";
     private static final String FILE_SIZE = "FileSize";
+    private static final String UPLOAD_WORKERS = "UploadWorkers";
+    private static final String HAVE_BATCH = "HaveBatchInterval";
+    private static final String REQUEST_TIMEOUT = "RequestTimeout";
+    private static final String STREAMING_WINDOW = "StreamingWindow";
+    private static final String PARALLEL_STREAMS = "ParallelStreams";
+    private static final String TCP_NO_DELAY = "TcpNoDelay";
+    private static final String KEEP_ALIVE = "KeepAlive";
+    private static final String SEND_BUFFER = "SendBufferSize";
+    private static final String RECEIVE_BUFFER = "ReceiveBufferSize";
+    private static final String RELAY_PORT_OFFSET = "RelayPortOffset";
+    private static final String WIRE_TRACE_SIZE = "WireTraceSize";
+    private static final String PIECE_STORAGE = "PieceStorage";
+    private static final String PIECE_CACHE_SIZE = "PieceCacheSize";
+    private static final String SEED_CHOKING = "SeedChoking";
+    private static final String SEND_BATCH_WINDOW = "SendBatchWindow";
+    private static final String SEND_BATCH_BYTES = "SendBatchBytes";
+    private static final String PREF_NEIGHBORS_MIN = "PreferredNeighborsMin";
+    private static final String PREF_NEIGHBORS_MAX = "PreferredNeighborsMax";
+    private static final String TRACKER_HOST = "TrackerHost";
+    private static final String TRACKER_PORT = "TrackerPort";
+    private static final String ANNOUNCE_INTERVAL = "AnnounceInterval";
 
     private static String fileName;
     private static int prefCount, dataUnchoke, randomUnchoke, pieceSize, fileSize;
+    private static int uploadWorkers = 4; // optional keys keep their defaults
+    private static int haveBatch = 100;
+    private static int requestTimeout = 10000;
+    private static int streamingWindow = 0;
+    private static int parallelStreams = 1, sendBuffer = 0, receiveBuffer = 0;
+    private static boolean tcpNoDelay = false, keepAlive = false;
+    private static int relayPortOffset = 0;
+    private static int wireTraceSize = 0;
+    private static boolean diskStorage = false;
+    private static long pieceCacheSize = 64L*1024*1024;
+    private static boolean seedRoundRobin = false;
+    private static int sendBatchWindow = 0, sendBatchBytes = 16384;
+    private static int prefCountMin = 1, prefCountMax = 0;
+    private static String trackerHost = "localhost";
+    private static int trackerPort = 0, announceInterval = 1000;
     private static byte[] file = null;
 
     static {
@@ -41,6 +77,48 @@ public class CommonConfig {
                 fileSize = Integer.parseInt(value);
             } else if (key.equals(FILE)) {
                 fileName = value;
+            } else if (key.equals(UPLOAD_WORKERS)) {
+                uploadWorkers = Integer.parseInt(value);
+            } else if (key.equals(HAVE_BATCH)) {
+                haveBatch = Integer.parseInt(value);
+            } else if (key.equals(REQUEST_TIMEOUT)) {
+                requestTimeout = Integer.parseInt(value);
+            } else if (key.equals(STREAMING_WINDOW)) {
+                streamingWindow = Integer.parseInt(value);
+            } else if (key.equals(PARALLEL_STREAMS)) {
+                parallelStreams = Integer.parseInt(value);
+            } else if (key.equals(TCP_NO_DELAY)) {
+                tcpNoDelay = value.equals("1");
+            } else if (key.equals(KEEP_ALIVE)) {
+                keepAlive = value.equals("1");
+            } else if (key.equals(SEND_BUFFER)) {
+                sendBuffer = Integer.parseInt(value);
+            } else if (key.equals(RECEIVE_BUFFER)) {
+                receiveBuffer = Integer.parseInt(value);
+            } else if (key.equals(RELAY_PORT_OFFSET)) {
+                relayPortOffset = Integer.parseInt(value);
+            } else if (key.equals(WIRE_TRACE_SIZE)) {
+                wireTraceSize = Integer.parseInt(value);
+            } else if (key.equals(PIECE_STORAGE)) {
+                diskStorage = value.equals("disk");
+            } else if (key.equals(PIECE_CACHE_SIZE)) {
+                pieceCacheSize = Long.parseLong(value);
+            } else if (key.equals(SEED_CHOKING)) {
+                seedRoundRobin = value.equals("roundrobin");
+            } else if (key.equals(SEND_BATCH_WINDOW)) {
+                sendBatchWindow = Integer.parseInt(value);
+            } else if (key.equals(SEND_BATCH_BYTES)) {
+                sendBatchBytes = Integer.parseInt(value);
+            } else if (key.equals(PREF_NEIGHBORS_MIN)) {
+                prefCountMin = Integer.parseInt(value);
+            } else if (key.equals(PREF_NEIGHBORS_MAX)) {
+                prefCountMax = Integer.parseInt(value);
+            } else if (key.equals(TRACKER_HOST)) {
+                trackerHost = value;
+            } else if (key.equals(TRACKER_PORT)) {
+                trackerPort = Integer.parseInt(value);
+            } else if (key.equals(ANNOUNCE_INTERVAL)) {
+                announceInterval = Integer.parseInt(value);
             }
         }
     }
@@ -51,6 +129,16 @@ public class CommonConfig {
         return prefCount;
     }
 
+    // bounds for tuning the preferred neighbor count, which then only
+    // gives the starting point. A max of 0 keeps the count fixed
+    public static int getPreferredCountMin() {
+        return prefCountMin;
+    }
+
+    public static int getPreferredCountMax() {
+        return prefCountMax;
+    }
+
     public static int getDataUnchokeInterval() {
         return dataUnchoke;
     }
@@ -59,6 +147,99 @@ public class CommonConfig {
         return randomUnchoke;
     }
 
+    public static int getUploadWorkers() {
+        return uploadWorkers;
+    }
+
+    // in milliseconds, unlike the unchoking intervals
+    public static int getHaveBatchInterval() {
+        return haveBatch;
+    }
+
+    // in milliseconds
+    public static int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    // in pieces, 0 turns streaming mode off
+    public static int getStreamingWindow() {
+        return streamingWindow;
+    }
+
+    // TCP streams per peer, including the one the handshake happens on
+    public static int getParallelStreams() {
+        return parallelStreams;
+    }
+
+    public static boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public static boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    // in bytes, 0 leaves the OS default
+    public static int getSendBufferSize() {
+        return sendBuffer;
+    }
+
+    // in bytes, 0 leaves the OS default
+    public static int getReceiveBufferSize() {
+        return receiveBuffer;
+    }
+
+    // peers dial port+offset, where the relay listens. 0 means no relay
+    public static int getRelayPortOffset() {
+        return relayPortOffset;
+    }
+
+    // size of the trace ring file in bytes, 0 turns tracing off
+    public static int getWireTraceSize() {
+        return wireTraceSize;
+    }
+
+    // "disk" keeps pieces in the file instead of on the heap
+    public static boolean isDiskStorage() {
+        return diskStorage;
+    }
+
+    // in bytes, only used with disk storage
+    public static long getPieceCacheSize() {
+        return pieceCacheSize;
+    }
+
+    // "roundrobin" rotates the slots once we're seeding, "rate" keeps the
+    // peers we upload to fastest
+    public static boolean isSeedRoundRobin() {
+        return seedRoundRobin;
+    }
+
+    // in milliseconds, how long non-urgent packets may wait to be sent
+    // together. 0 sends every packet right away
+    public static int getSendBatchWindow() {
+        return sendBatchWindow;
+    }
+
+    // in bytes, a batch this big goes out without waiting for the window
+    public static int getSendBatchBytes() {
+        return sendBatchBytes;
+    }
+
+    public static String getTrackerHost() {
+        return trackerHost;
+    }
+
+    // 0 means no tracker, the swarm is just PeerInfo.cfg
+    public static int getTrackerPort() {
+        return trackerPort;
+    }
+
+    // in milliseconds
+    public static int getAnnounceInterval() {
+        return announceInterval;
+    }
+
     public static byte[] getFile() {
         // only read the file once
         if (file == null) {
@@ -0,0 +1,101 @@
+package com.networking.config;
+
+import com.networking.Bootstrap;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Network conditions the relay applies between peers, read from
+ * NetworkProfile.cfg. Each line is either "Seed <n>" or
+ * "Link <from> <to> <delayMs> <jitterMs> <kbitPerSec> <resetPerMB>", where
+ * from/to are peer ids or * for any peer, a bandwidth of 0 means uncapped,
+ * and later lines override earlier ones for the links they match.
+ */
+public class LinkConfig {
+
+    private static final String CFG_FILE_PATH = "./NetworkProfile.cfg";
+    private static final String SEED = "Seed";
+    private static final String LINK = "Link";
+    private static final int ANY_PEER = -1;
+    public static final ArrayList<LinkConfig> LINK_CONFIGS
+        = new ArrayList<LinkConfig>();
+    private static final LinkConfig DIRECT = new LinkConfig(ANY_PEER, ANY_PEER, 0, 0, 0, 0.);
+
+    private static long seed = 0;
+
+    static {
+        Scanner sc = null;
+        try {
+            sc = new Scanner(new File(CFG_FILE_PATH));
+        } catch (FileNotFoundException e){
+            Bootstrap.stackExit(e);
+        }
+        while (sc.hasNextLine()) {
+            String[] spl = sc.nextLine().trim().split("\\s+");
+            if (spl[0].equals(SEED)) {
+                seed = Long.parseLong(spl[1]);
+            } else if (spl[0].equals(LINK)) {
+                LINK_CONFIGS.add(new LinkConfig(parsePeer(spl[1]),
+                    parsePeer(spl[2]),
+                    Integer.parseInt(spl[3]),
+                    Integer.parseInt(spl[4]),
+                    Integer.parseInt(spl[5]),
+                    Double.parseDouble(spl[6])
+                ));
+            } // anything else, like "#" lines, is a comment
+        }
+    }
+
+    private int from, to, delay, jitter, kbitPerSec;
+    private double resetPerMB;
+
+    private LinkConfig(int from, int to, int delay, int jitter, int kbitPerSec, double resetPerMB) {
+        this.from = from;
+        this.to = to;
+        this.delay = delay;
+        this.jitter = jitter;
+        this.kbitPerSec = kbitPerSec;
+        this.resetPerMB = resetPerMB;
+    }
+
+    public static long getSeed() {
+        return seed;
+    }
+
+    // the conditions for bytes going from one peer to another
+    public static LinkConfig find(int fromID, int toID) {
+        LinkConfig match = DIRECT;
+        for (LinkConfig cfg : LINK_CONFIGS) {
+            if ((cfg.from == ANY_PEER || cfg.from == fromID)
+                    && (cfg.to == ANY_PEER || cfg.to == toID)) {
+                match = cfg;
+            }
+        }
+        return match;
+    }
+
+    // in milliseconds, one way
+    public int getDelay() {
+        return delay;
+    }
+
+    // in milliseconds, added or taken off the delay at random
+    public int getJitter() {
+        return jitter;
+    }
+
+    // 0 means uncapped
+    public int getKbitPerSec() {
+        return kbitPerSec;
+    }
+
+    // chance of resetting the connection per MB sent
+    public double getResetPerMB() {
+        return resetPerMB;
+    }
+
+    private static int parsePeer(String str) {
+        return str.equals("*") ? ANY_PEER : Integer.parseInt(str);
+    }
+}
@@ -29,13 +29,21 @@ public class PeerConfig {
     private String host;
     private boolean hasFile;
 
-    private PeerConfig(int id, String host, int port, boolean hasFile) {
+    public PeerConfig(int id, String host, int port, boolean hasFile) {
         this.id = id;
         this.host = host;
         this.port = port;
         this.hasFile = hasFile;
     }
 
+    // the config for a peer in PeerInfo.cfg, or null if it isn't listed
+    public static PeerConfig find(int id) {
+        for (PeerConfig cfg : PEER_CONFIGS) {
+            if (cfg.getPeerID() == id) return cfg;
+        }
+        return null;
+    }
+
     public int getPeerID() {
         return id;
     }
@@ -8,6 +8,7 @@ import java.util.*;
 public class Logger {
     public static final Logger INSTANCE = new Logger();
     private PrintWriter outstream = new PrintWriter(System.out);
+    private boolean toFile = false;
 
     private Logger() { }
 
@@ -22,10 +23,13 @@ public class Logger {
 
     public synchronized void giveID(int id) {
         if (outstream != null) {
-            outstream.close();
+            // stdout has to stay open, the file may get streamed to it
+            if (toFile) outstream.close();
+            else outstream.flush();
         }
     	try {
     		outstream = new PrintWriter(new FileWriter("./log_peer_" + id + ".log"));
+    		toFile = true;
     	} catch (IOException ex) {
     		Bootstrap.stackExit(ex);
         }
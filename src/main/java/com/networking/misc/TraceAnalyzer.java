@@ -0,0 +1,246 @@
+package com.networking.misc;
+
+import com.networking.net.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Replays the wire traces of every peer in a swarm and reports request to
+ * piece latencies, choke churn, idle gaps per connection and the critical
+ * path to swarm completion.
+ *
+ * Usage: java -cp project.jar com.networking.misc.TraceAnalyzer [trace_peer_*.bin ...]
+ * With no arguments, every trace file in the current directory is read.
+ */
+public class TraceAnalyzer {
+    private static final long IDLE_GAP_NANOS = 100L*1000*1000; // gaps worth reporting
+
+    private static class Record {
+        int localID, remoteID, type, stream, piece, size;
+        byte direction;
+        long time; // nanoseconds since the epoch, comparable across peers
+    }
+
+    public static void main(String[] args) throws IOException {
+        ArrayList<File> files = new ArrayList<File>();
+        for (String arg : args) files.add(new File(arg));
+        if (files.isEmpty()) {
+            File[] found = new File(".").listFiles();
+            if (found != null) {
+                for (File f : found) {
+                    if (f.getName().startsWith("trace_peer_") && f.getName().endsWith(".bin")) files.add(f);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.out.println("No trace files found.");
+            return;
+        }
+        // peer id -> its records, in time order
+        TreeMap<Integer, ArrayList<Record>> traces = new TreeMap<Integer, ArrayList<Record>>();
+        for (File f : files) {
+            ArrayList<Record> recs = read(f);
+            if (!recs.isEmpty()) traces.put(recs.get(0).localID, recs);
+        }
+        long start = Long.MAX_VALUE;
+        for (ArrayList<Record> recs : traces.values()) start = Math.min(start, recs.get(0).time);
+
+        printLatencies(traces);
+        printChokeChurn(traces);
+        printIdleGaps(traces);
+        printCriticalPath(traces, start);
+    }
+
+    private static ArrayList<Record> read(File f) throws IOException {
+        ArrayList<Record> recs = new ArrayList<Record>();
+        RandomAccessFile file = new RandomAccessFile(f, "r");
+        ByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        file.close();
+        if (buf.getInt(0) != WireTrace.MAGIC || buf.getInt(4) != WireTrace.VERSION) {
+            System.out.println("Skipping <" + f + ">, not a wire trace.");
+            return recs;
+        }
+        int id = buf.getInt(8);
+        int recordSize = buf.getInt(12);
+        int capacity = buf.getInt(16);
+        long written = buf.getLong(WireTrace.COUNT_OFFSET);
+        long wallStart = buf.getLong(28);
+        long nanoStart = buf.getLong(36);
+        // the count is only a hint, slots that were never written have no time
+        for (int i = 0; i < capacity; i++) {
+            int off = WireTrace.HEADER_SIZE + i*recordSize;
+            long t = buf.getLong(off);
+            if (t == 0) continue;
+            Record r = new Record();
+            r.localID = id;
+            r.time = wallStart*1000*1000 + (t-nanoStart);
+            r.remoteID = buf.getInt(off+8);
+            r.direction = buf.get(off+12);
+            r.type = buf.get(off+13);
+            r.stream = buf.getShort(off+14);
+            r.piece = buf.getInt(off+16);
+            r.size = buf.getInt(off+20);
+            recs.add(r);
+        }
+        Collections.sort(recs, new Comparator<Record>() {
+            public int compare(Record a, Record b) {
+                return Long.compare(a.time, b.time);
+            }
+        });
+        System.out.println("Peer <" + id + ">: " + recs.size() + " records"
+                + (written > capacity ? " (ring wrapped, oldest " + (written-capacity) + " lost)" : ""));
+        return recs;
+    }
+
+    private static boolean is(Record r, Packet.PacketType type, byte direction) {
+        return r.type == type.ordinal() && r.direction == direction;
+    }
+
+    private static void printLatencies(TreeMap<Integer, ArrayList<Record>> traces) {
+        System.out.println();
+        System.out.println("Request -> piece latency (ms)");
+        ArrayList<Double> all = new ArrayList<Double>();
+        for (ArrayList<Record> recs : traces.values()) {
+            // (remote, piece) -> when we asked
+            HashMap<Long, Long> asked = new HashMap<Long, Long>();
+            TreeMap<Integer, ArrayList<Double>> byRemote = new TreeMap<Integer, ArrayList<Double>>();
+            for (Record r : recs) {
+                long key = ((long) r.remoteID << 32) | (r.piece & 0xFFFFFFFFL);
+                if (is(r, Packet.PacketType.REQUEST, WireTrace.SENT)) {
+                    asked.put(key, r.time);
+                } else if (is(r, Packet.PacketType.PIECE, WireTrace.RECEIVED)) {
+                    Long t = asked.remove(key);
+                    if (t == null) continue;
+                    double ms = (r.time-t)/1e6;
+                    if (!byRemote.containsKey(r.remoteID)) byRemote.put(r.remoteID, new ArrayList<Double>());
+                    byRemote.get(r.remoteID).add(ms);
+                    all.add(ms);
+                }
+            }
+            for (Map.Entry<Integer, ArrayList<Double>> ent : byRemote.entrySet()) {
+                System.out.println("  Peer <" + recs.get(0).localID + "> from Peer <" + ent.getKey() + ">: " + summarize(ent.getValue()));
+            }
+        }
+        System.out.println("  all: " + summarize(all));
+    }
+
+    private static String summarize(ArrayList<Double> vals) {
+        if (vals.isEmpty()) return "n=0";
+        Collections.sort(vals);
+        return String.format("n=%d p50=%.2f p90=%.2f p99=%.2f max=%.2f", vals.size(),
+                pct(vals, .5), pct(vals, .9), pct(vals, .99), vals.get(vals.size()-1));
+    }
+
+    private static double pct(ArrayList<Double> sorted, double p) {
+        return sorted.get((int) Math.min(sorted.size()-1, Math.floor(p*sorted.size())));
+    }
+
+    private static void printChokeChurn(TreeMap<Integer, ArrayList<Record>> traces) {
+        System.out.println();
+        System.out.println("Choke churn (choke/unchoke messages sent)");
+        for (ArrayList<Record> recs : traces.values()) {
+            TreeMap<Integer, int[]> byRemote = new TreeMap<Integer, int[]>();
+            for (Record r : recs) {
+                boolean choke = is(r, Packet.PacketType.CHOKE, WireTrace.SENT);
+                boolean unchoke = is(r, Packet.PacketType.UNCHOKE, WireTrace.SENT);
+                if (!choke && !unchoke) continue;
+                if (!byRemote.containsKey(r.remoteID)) byRemote.put(r.remoteID, new int[2]);
+                byRemote.get(r.remoteID)[choke ? 0 : 1]++;
+            }
+            double minutes = (recs.get(recs.size()-1).time-recs.get(0).time)/6e10;
+            for (Map.Entry<Integer, int[]> ent : byRemote.entrySet()) {
+                int total = ent.getValue()[0]+ent.getValue()[1];
+                System.out.println(String.format("  Peer <%d> -> Peer <%d>: %d chokes, %d unchokes, %.1f changes/min",
+                        recs.get(0).localID, ent.getKey(), ent.getValue()[0], ent.getValue()[1],
+                        minutes > 0 ? total/minutes : 0.));
+            }
+        }
+    }
+
+    private static void printIdleGaps(TreeMap<Integer, ArrayList<Record>> traces) {
+        System.out.println();
+        System.out.println("Idle gaps per connection (over " + IDLE_GAP_NANOS/1000000 + " ms)");
+        for (ArrayList<Record> recs : traces.values()) {
+            // (remote, stream) -> last time we saw traffic, and the stats
+            TreeMap<Long, long[]> conns = new TreeMap<Long, long[]>();
+            for (Record r : recs) {
+                long key = ((long) r.remoteID << 16) | r.stream;
+                long[] st = conns.get(key);
+                if (st == null) {
+                    conns.put(key, new long[] {r.time, 0, 0, 0});
+                    continue;
+                }
+                long gap = r.time - st[0];
+                st[0] = r.time;
+                if (gap > IDLE_GAP_NANOS) {
+                    st[1]++; // number of long gaps
+                    st[2] += gap; // idle time in them
+                }
+                st[3] = Math.max(st[3], gap);
+            }
+            for (Map.Entry<Long, long[]> ent : conns.entrySet()) {
+                long[] st = ent.getValue();
+                System.out.println(String.format("  Peer <%d> <-> Peer <%d> stream %d: %d gaps, %.1f ms idle, longest %.1f ms",
+                        recs.get(0).localID, ent.getKey() >> 16, ent.getKey() & 0xFFFF,
+                        st[1], st[2]/1e6, st[3]/1e6));
+            }
+        }
+    }
+
+    private static void printCriticalPath(TreeMap<Integer, ArrayList<Record>> traces, long start) {
+        System.out.println();
+        System.out.println("Critical path to swarm completion");
+        // whoever got their last piece last held the swarm up
+        Record last = null;
+        for (ArrayList<Record> recs : traces.values()) {
+            Record done = lastPieceReceived(recs);
+            if (done == null) continue;
+            System.out.println(String.format("  Peer <%d> done at %.1f ms", done.localID, (done.time-start)/1e6));
+            if (last == null || done.time > last.time) last = done;
+        }
+        if (last == null) {
+            System.out.println("  no pieces were transferred");
+            return;
+        }
+        // walk back through who we got that piece from, and when they got it
+        Record cur = last;
+        HashSet<Integer> seen = new HashSet<Integer>();
+        while (cur != null && seen.add(cur.localID)) {
+            Record asked = null;
+            for (Record r : traces.get(cur.localID)) {
+                if (r.time > cur.time) break;
+                if (is(r, Packet.PacketType.REQUEST, WireTrace.SENT)
+                        && r.remoteID == cur.remoteID && r.piece == cur.piece) asked = r;
+            }
+            System.out.println(String.format("  %.1f ms: Peer <%d> got piece <%d> from Peer <%d>%s",
+                    (cur.time-start)/1e6, cur.localID, cur.piece, cur.remoteID,
+                    asked == null ? "" : String.format(" (requested %.1f ms earlier)", (cur.time-asked.time)/1e6)));
+            ArrayList<Record> from = traces.get(cur.remoteID);
+            Record prev = from == null ? null : firstPieceReceived(from, cur.piece);
+            if (prev == null || prev.time > cur.time) {
+                System.out.println("  Peer <" + cur.remoteID + "> had piece <" + cur.piece + "> from the start");
+                break;
+            }
+            cur = prev;
+        }
+    }
+
+    private static Record lastPieceReceived(ArrayList<Record> recs) {
+        for (int i = recs.size()-1; i >= 0; i--) {
+            Record r = recs.get(i);
+            if (is(r, Packet.PacketType.PIECE, WireTrace.RECEIVED)) return r;
+        }
+        return null;
+    }
+
+    // when a peer first got a piece, later copies are duplicates
+    private static Record firstPieceReceived(ArrayList<Record> recs, int piece) {
+        for (Record r : recs) {
+            if (is(r, Packet.PacketType.PIECE, WireTrace.RECEIVED) && r.piece == piece) return r;
+        }
+        return null;
+    }
+}
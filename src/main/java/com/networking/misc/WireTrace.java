@@ -0,0 +1,84 @@
+package com.networking.misc;
+
+import com.networking.Bootstrap;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records every packet sent or received as a fixed size binary record in a
+ * memory-mapped ring file, trace_peer_[id].bin. Recording is a handful of
+ * absolute puts into the mapping, so it can stay on during real transfers;
+ * when the ring fills up the oldest records get overwritten.
+ *
+ * File layout (big endian):
+ *   header, HEADER_SIZE bytes: magic, version, peer id, record size,
+ *     capacity in records, records written so far, wall clock millis and
+ *     System.nanoTime() when the trace was opened
+ *   records, RECORD_SIZE bytes each: nanoTime, remote peer id, direction,
+ *     packet type ordinal, stream index, piece index (-1 if none), payload size
+ */
+public class WireTrace {
+    public static final WireTrace INSTANCE = new WireTrace();
+
+    public static final int MAGIC = 0x57545243; // "WTRC"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 24;
+    public static final int COUNT_OFFSET = 20; // where "records written" lives
+    public static final byte RECEIVED = 0;
+    public static final byte SENT = 1;
+
+    private volatile MappedByteBuffer buf = null; // null until opened
+    private int capacity;
+    private final AtomicLong written = new AtomicLong();
+
+    private WireTrace() { }
+
+    public synchronized void open(int id, int sizeBytes) {
+        try {
+            capacity = Math.max(1, (sizeBytes-HEADER_SIZE)/RECORD_SIZE);
+            RandomAccessFile file = new RandomAccessFile("./trace_peer_" + id + ".bin", "rw");
+            file.setLength(0); // start fresh, old records would confuse the analyser
+            MappedByteBuffer mapped = file.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + 1L*capacity*RECORD_SIZE);
+            file.close(); // the mapping stays valid
+            mapped.putInt(0, MAGIC);
+            mapped.putInt(4, VERSION);
+            mapped.putInt(8, id);
+            mapped.putInt(12, RECORD_SIZE);
+            mapped.putInt(16, capacity);
+            mapped.putLong(COUNT_OFFSET, 0);
+            mapped.putLong(28, System.currentTimeMillis());
+            mapped.putLong(36, System.nanoTime());
+            buf = mapped;
+        } catch (IOException ex) {
+            Bootstrap.stackExit(ex);
+        }
+    }
+
+    public boolean isEnabled() {
+        return buf != null;
+    }
+
+    // potentially can get called by different threads
+    public void record(int remoteID, byte direction, int packetType,
+            int stream, int pieceIdx, int size) {
+        MappedByteBuffer b = buf;
+        if (b == null) return;
+        long seq = written.getAndIncrement();
+        int off = HEADER_SIZE + (int) (seq % capacity)*RECORD_SIZE;
+        // absolute puts only, so threads writing different slots don't
+        // step on each other
+        b.putLong(off, System.nanoTime());
+        b.putInt(off+8, remoteID);
+        b.put(off+12, direction);
+        b.put(off+13, (byte) packetType);
+        b.putShort(off+14, (short) stream);
+        b.putInt(off+16, pieceIdx);
+        b.putInt(off+20, size);
+        b.putLong(COUNT_OFFSET, seq+1);
+    }
+}
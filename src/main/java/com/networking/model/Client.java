@@ -3,11 +3,15 @@ package com.networking.model;
 import com.networking.*;
 import com.networking.config.*;
 import com.networking.misc.*;
+import com.networking.net.*;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.nio.charset.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 import static com.networking.config.CommonConfig.*;
 
@@ -15,25 +19,69 @@ import static com.networking.config.CommonConfig.*;
  * Does all of the work for managing a single instance of the bittorrent client.
  */
 public class Client implements Runnable {
+    private static final double PREFETCH_SHARE = 0.25; // of the cache, split between peers
+
     private final PeerConfig clientCfg;
     private final ArrayList<Peer> peers = new ArrayList<Peer>();
 
-    private final Object BITFIELD_LOCK = new Object(); // lock for both things below
-    private final BitSet piecesObtained; //tracks which pieces we have
-    private final byte[][] fileMap; //each row is a piece
+    private final PieceState pieceState; //tracks which pieces we have, and the pieces
+    private PieceFile pieceFile = null; // where the pieces are, with disk storage
+    private PieceCache pieceCache = null; // hot pieces from pieceFile
+
+    private final LinkedList<Integer> pieceQueue = new LinkedList<Integer>();
+    private final AtomicIntegerArray availability; // how many peers have each piece
+
+    private final Object PIECE_ARRIVAL = new Object(); // notified on every new piece
+    private volatile int streamPosition = 0; // first piece a stream reader needs
 
-    private final Queue<Integer> pieceQueue = new LinkedList<Integer>();
+    private final UploadScheduler uploadScheduler;
+    private final RequestTracker requestTracker;
+
+    // only touched by the data unchoke timer, for round robin seeding
+    private final HashMap<Peer, Integer> preferredRounds = new HashMap<Peer, Integer>();
+    private int chokeRound = 0;
+    private final NeighborTuner neighborTuner; // null with a fixed neighbor count
+
+    // with a tracker, who is in the swarm right now (null until we hear)
+    // and which of the peers in PeerInfo.cfg have shown up so far
+    private volatile List<PeerConfig> members = null;
+    private final Set<Integer> seenIDs = Collections.synchronizedSet(new HashSet<Integer>());
+    // peers we've seen with the whole file, they stay done after they leave
+    private final Set<Integer> doneIDs = Collections.synchronizedSet(new HashSet<Integer>());
+    private final Object FILE_LOCK = new Object();
+    private boolean fileWritten = false; // only touched with FILE_LOCK
 
     public Client(PeerConfig clientCfg) {
         this.clientCfg = clientCfg;
+        uploadScheduler = new UploadScheduler(this, getUploadWorkers());
+        requestTracker = new RequestTracker(this, getRequestTimeout());
+        neighborTuner = getPreferredCountMax() > 0
+                ? new NeighborTuner(getPreferredCount(), getPreferredCountMin(), getPreferredCountMax())
+                : null;
+
+        pieceState = new PieceState(getNumFilePieces());
+        availability = new AtomicIntegerArray(getNumFilePieces());
 
-        piecesObtained = new BitSet(getNumFilePieces());
-        fileMap = new byte[getNumFilePieces()][];
+        if (isDiskStorage()) {
+            // seeds serve straight out of the original file, everyone else
+            // writes pieces into place as they come in
+            try {
+                pieceFile = clientCfg.hasFile()
+                        ? new PieceFile(new File("./" + getFileName()), false)
+                        : new PieceFile(getOutputFile(), true);
+            } catch (IOException ex) {
+                Bootstrap.stackExit(ex);
+            }
+            pieceCache = new PieceCache(pieceFile, getPieceCacheSize());
+        }
 
-        if (clientCfg.hasFile()) {
-            // Set the entire bitfield because we have every piece
-            piecesObtained.flip(0, getNumFilePieces());
-            // Set up the fileMap (map of piece idx to the actual piece)
+        if (clientCfg.hasFile() && isDiskStorage()) {
+            // just set every bit, the bytes stay on disk
+            for (int i = 0; i < getNumFilePieces(); i++) {
+                pieceState.setPiece(i, null);
+            }
+        } else if (clientCfg.hasFile()) {
+            // Set up the piece state (map of piece idx to the actual piece)
             for(int byteLo = 0, pieceIdx = 0;
                     byteLo < getFileSize();
                     byteLo += getPieceSize()) {
@@ -48,8 +96,8 @@ public class Client implements Runnable {
                 for (int bytePtr = byteLo; bytePtr < (byteLo+len); bytePtr++) {
                     pieceArr[bytePtr-byteLo] = getFile()[bytePtr];
                 }
-                // Store the current piece in the file map
-                fileMap[pieceIdx++] = pieceArr;
+                // Store the current piece, which also sets its bit
+                pieceState.setPiece(pieceIdx++, pieceArr);
             }
         } else {
             ArrayList<Integer> toAdd = new ArrayList<Integer>();
@@ -65,38 +113,82 @@ public class Client implements Runnable {
         return clientCfg.getPeerID();
     }
 
+    public UploadScheduler getUploadScheduler() {
+        return uploadScheduler;
+    }
+
+    public RequestTracker getRequestTracker() {
+        return requestTracker;
+    }
+
     public byte[] getBitfieldArray() {
-        synchronized (BITFIELD_LOCK) {
-            return piecesObtained.toByteArray();
-        }
+        return pieceState.toByteArray();
     }
 
     public boolean hasPiece(int pieceID) {
-        synchronized (BITFIELD_LOCK) {
-            return piecesObtained.get(pieceID);
-        }
+        return pieceState.hasPiece(pieceID);
     }
 
     public byte[] getPiece(int pieceId) {
-        synchronized (BITFIELD_LOCK) {
-            if (pieceId >= fileMap.length) return null;
-            return fileMap[pieceId];
+        if (pieceCache == null || !hasPiece(pieceId)) return pieceState.getPiece(pieceId);
+        try {
+            return pieceCache.get(pieceId);
+        } catch (IOException ex) {
+            Bootstrap.stackExit(ex);
+            return null;
         }
     }
 
-    public int getNumMissingPieces() {
-        synchronized (BITFIELD_LOCK) {
-            return getNumFilePieces() - piecesObtained.cardinality();
+    // hints that a piece is about to be uploaded
+    public void prefetchPiece(int pieceId) {
+        if (pieceCache != null) pieceCache.prefetch(pieceId);
+    }
+
+    // warms the cache with what unchoked, interested peers will likely ask
+    // for soon: the rarest pieces we have that they don't
+    // will be called by a timer asynchronously
+    public void prefetchForPeers() {
+        ArrayList<Peer> wanting = new ArrayList<Peer>();
+        synchronized (peers) {
+            for (Peer p : peers) {
+                if (!p.isChoked() && p.isInterested()) wanting.add(p);
+            }
+        }
+        if (wanting.isEmpty()) return;
+        // leave most of the cache to pieces that are actually being asked for
+        long perPeer = Math.max(1, (long) (PREFETCH_SHARE*getPieceCacheSize()/getPieceSize()/wanting.size()));
+        for (Peer p : wanting) {
+            BitSet theirs = p.getBitfield();
+            ArrayList<Integer> candidates = new ArrayList<Integer>();
+            for (int piece = theirs.nextClearBit(0); piece < getNumFilePieces();
+                    piece = theirs.nextClearBit(piece+1)) {
+                if (hasPiece(piece)) candidates.add(piece);
+            }
+            Collections.shuffle(candidates); // ties go anywhere
+            Collections.sort(candidates, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return Integer.compare(availability.get(a), availability.get(b));
+                }
+            });
+            for (int i = 0; i < perPeer && i < candidates.size(); i++) {
+                pieceCache.prefetch(candidates.get(i));
+            }
         }
     }
 
+    public int getNumMissingPieces() {
+        return pieceState.getNumMissingPieces();
+    }
+
     public int getMissingPiece(BitSet piecesOffered) {
+        if (getStreamingWindow() > 0) return getStreamingPiece(piecesOffered);
         // This intentionally uses a queue, in order to avoid requesting
         // the same piece from two different peers.
         synchronized (pieceQueue) {
             int count = pieceQueue.size();
             while (count-->0) {
                 int pop = pieceQueue.poll();
+                if (hasPiece(pop)) continue; // arrived late from a choked request
                 if (piecesOffered.get(pop)) return pop;
                 pieceQueue.add(pop); // add to end of queue
             }
@@ -104,25 +196,164 @@ public class Client implements Runnable {
         return -1;
     }
 
+    // in streaming mode the pieces right after the reader come first, in
+    // order. Past the window we go rarest first so the swarm stays healthy
+    private int getStreamingPiece(BitSet piecesOffered) {
+        int windowLo = streamPosition;
+        int windowHi = windowLo + getStreamingWindow();
+        synchronized (pieceQueue) {
+            int best = -1;
+            boolean bestInWindow = false;
+            ListIterator<Integer> it = pieceQueue.listIterator();
+            while (it.hasNext()) {
+                int piece = it.next();
+                if (hasPiece(piece)) {
+                    it.remove(); // arrived late from a choked request
+                    continue;
+                }
+                if (!piecesOffered.get(piece)) continue;
+                boolean inWindow = piece >= windowLo && piece < windowHi;
+                if (best == -1
+                        || (inWindow && !bestInWindow)
+                        || (inWindow && piece < best)
+                        || (!inWindow && !bestInWindow
+                            && availability.get(piece) < availability.get(best))) {
+                    // ties keep the earlier one, the queue is shuffled
+                    best = piece;
+                    bestInWindow = inWindow;
+                }
+            }
+            if (best != -1) pieceQueue.remove(Integer.valueOf(best));
+            return best;
+        }
+    }
+
+    // gets called by peer threads as they learn about a peer's pieces
+    public void changeAvailability(BitSet pieces, int delta) {
+        for (int piece = pieces.nextSetBit(0);
+                piece >= 0 && piece < getNumFilePieces();
+                piece = pieces.nextSetBit(piece+1)) {
+            availability.addAndGet(piece, delta);
+        }
+    }
+
+    public void changeAvailability(int pieceID, int delta) {
+        if (pieceID < 0 || pieceID >= getNumFilePieces()) return;
+        availability.addAndGet(pieceID, delta);
+    }
+
+    // blocks until we have the piece, and slides the streaming window up to it
+    public byte[] awaitPiece(int pieceID) throws InterruptedException {
+        streamPosition = pieceID;
+        synchronized (PIECE_ARRIVAL) {
+            while (!hasPiece(pieceID)) {
+                PIECE_ARRIVAL.wait();
+            }
+        }
+        return getPiece(pieceID);
+    }
+
+    // reads the file from the start, while it is still being downloaded
+    public InputStream openStream() {
+        return new PieceInputStream(this);
+    }
+
+    public ReadableByteChannel openChannel() {
+        return Channels.newChannel(openStream());
+    }
+
+    // gives back a piece that was requested but will never arrive.
+    // it goes to the front, since it's been waiting the longest
+    public void returnMissingPiece(int pieceID) {
+        synchronized (pieceQueue) {
+            if (!hasPiece(pieceID)) pieceQueue.addFirst(pieceID);
+        }
+    }
+
+    // gets called by peer thread once it sees the peer has every piece
+    public void peerDone(int peerID) {
+        doneIDs.add(peerID);
+    }
+
     public int numPeersDone() {
-        int cnt = 0;
-        synchronized (peers) {
-            for (Peer p : peers) if (p.hasCompleteFile()) ++cnt;
+        return doneIDs.size();
+    }
+
+    // whether everyone in the swarm has the whole file. without a tracker
+    // that's everyone in PeerInfo.cfg. with one it's everyone we've ever
+    // seen, once the peers in PeerInfo.cfg have all shown up, except peers
+    // that are gone from both the tracker and our connections
+    public boolean isSwarmDone() {
+        if (getTrackerPort() == 0) {
+            for (PeerConfig cfg : PeerConfig.PEER_CONFIGS) {
+                if (cfg.getPeerID() != getClientID() && !doneIDs.contains(cfg.getPeerID())) return false;
+            }
+            return true;
+        }
+        List<PeerConfig> live = members;
+        if (live == null) return false;
+        for (PeerConfig cfg : PeerConfig.PEER_CONFIGS) {
+            if (!seenIDs.contains(cfg.getPeerID())) return false;
         }
-        return cnt;
+        HashSet<Integer> liveIDs = new HashSet<Integer>();
+        for (PeerConfig cfg : live) liveIDs.add(cfg.getPeerID());
+        synchronized (seenIDs) {
+            for (int id : seenIDs) {
+                if (id == getClientID() || doneIDs.contains(id)) continue;
+                // dropping out of the tracker's list alone doesn't make a
+                // peer done, the tracker may just be slow to hear from it
+                if (liveIDs.contains(id) || findPeer(id) != null) return false;
+            }
+        }
+        return true;
     }
 
     public void setPiece(int pieceID, byte[] pieceArr) {
         // set piece stuff
-        synchronized (BITFIELD_LOCK) {
-            piecesObtained.set(pieceID, true);
-            fileMap[pieceID] = pieceArr;
+        // a piece can show up twice if it was re-requested after a choke
+        if (pieceFile != null) {
+            if (hasPiece(pieceID)) return;
+            // on disk before its bit gets set, so readers always find it
+            try {
+                pieceFile.write(pieceID, pieceArr);
+            } catch (IOException ex) {
+                Bootstrap.stackExit(ex);
+            }
+            pieceArr = null;
+        }
+        if (!pieceState.setPiece(pieceID, pieceArr)) return;
+        // wake up anyone streaming
+        synchronized (PIECE_ARRIVAL) {
+            PIECE_ARRIVAL.notifyAll();
         }
         // send 'have' packet to all peers
+        // (peers that support batching hold on to it until the next flush)
+        boolean complete = getNumMissingPieces() == 0;
         synchronized (peers) {
             for (Peer p : peers) {
                 try {
                     p.sendHavePacket(pieceID);
+                    // we may not want anything from it anymore
+                    p.pieceArrived(pieceID);
+                    // don't make anyone wait to learn that we're done.
+                    // this also covers pieces other peer threads set but
+                    // haven't queued a 'have' for yet
+                    if (complete) p.sendHaveAllPacket();
+                } catch (IOException ex) {
+                    Bootstrap.stackExit(ex);
+                }
+            }
+        }
+        // don't wait for the rest of the swarm to save what we have
+        if (complete) writeFile();
+    }
+
+    public void flushHavePackets() {
+        // will be called by a timer asynchronously
+        synchronized (peers) {
+            for (Peer p : peers) {
+                try {
+                    p.flushHavePackets();
                 } catch (IOException ex) {
                     Bootstrap.stackExit(ex);
                 }
@@ -130,6 +361,20 @@ public class Client implements Runnable {
         }
     }
 
+    public Peer findPeer(int peerID) {
+        synchronized (peers) {
+            for (Peer p : peers) if (p.getPeerID() == peerID) return p;
+        }
+        return null;
+    }
+
+    // gets called by peer thread once its connection is gone
+    public void removePeer(Peer peer) {
+        synchronized (peers) {
+            peers.remove(peer);
+        }
+    }
+
     public void addPeer(Peer peer) {
         synchronized (peers) {
             peers.add(peer);
@@ -139,36 +384,82 @@ public class Client implements Runnable {
 
     public void dataUnchoke() {
         // will be called by a timer asynchronously
-        TreeMap<Double, Peer> rateMap = new TreeMap<Double, Peer>(Collections.reverseOrder());
-        boolean hasMissingPiece = getNumMissingPieces() != 0;
+        final boolean seeding = getNumMissingPieces() == 0;
+        final HashMap<Peer, Double> rates = new HashMap<Peer, Double>();
+        final HashMap<Peer, Integer> held = new HashMap<Peer, Integer>();
+        ArrayList<Peer> ranked = new ArrayList<Peer>();
+        double totalUpload = 0.;
+        int wanting = 0; // peers that could use a slot
         synchronized (peers) {
             for (Peer p : peers) {
-                double rate = p.getDownloadRate();
-                if (!hasMissingPiece) rate = 1.; // make all peers equals
+                // every window gets reset, even for peers we skip
+                double uploadRate = p.takeUploadRate();
+                totalUpload += uploadRate;
                 if (p.hasCompleteFile()) continue; // don't consider peers with full file
-                rateMap.put(rate, p);
+                if (p.isInterested()) wanting++;
+                rates.put(p, seeding ? uploadRate : p.getDownloadRate());
+                held.put(p, p.getNumPieces());
+                ranked.add(p);
             }
         }
-        int idx = 0;
+        // shuffling first makes ties random instead of collapsing them,
+        // the sort below is stable
+        Collections.shuffle(ranked);
+        Collections.sort(ranked, new Comparator<Peer>() {
+            public int compare(Peer a, Peer b) {
+                if (seeding) {
+                    // a slot is wasted on a peer that won't request anything
+                    if (a.isInterested() != b.isInterested()) return a.isInterested() ? -1 : 1;
+                    if (isSeedRoundRobin()) {
+                        // whoever went longest without a slot goes first
+                        int cmp = Integer.compare(lastPreferred(a), lastPreferred(b));
+                        if (cmp != 0) return cmp;
+                    } else {
+                        int cmp = Double.compare(rates.get(b), rates.get(a));
+                        if (cmp != 0) return cmp;
+                    }
+                    // peers close to finishing become seeds themselves sooner
+                    return Integer.compare(held.get(b), held.get(a));
+                }
+                return Double.compare(rates.get(b), rates.get(a));
+            }
+        });
+        int slots = getPreferredCount();
+        if (neighborTuner != null) {
+            int old = neighborTuner.getSlots();
+            slots = neighborTuner.update(totalUpload, wanting);
+            if (slots != old) {
+                Logger.INSTANCE.println("Peer <" + getClientID() + "> changed its preferred neighbor count from " + old + " to " + slots + " at " + String.format("%.1f", totalUpload) + " KB/s.");
+            }
+        }
+        chokeRound++;
         ArrayList<Integer> neighborIDs = new ArrayList<Integer>();
         try {
-            for (Map.Entry<Double, Peer> ent : rateMap.entrySet()) {
-                if (idx < getPreferredCount()) {
+            for (int idx = 0; idx < ranked.size(); idx++) {
+                Peer p = ranked.get(idx);
+                if (idx < slots) {
                     // unchoke
-                    ent.getValue().setDataChoke(false);
-                    neighborIDs.add(ent.getValue().getPeerID());
+                    p.setDataChoke(false);
+                    neighborIDs.add(p.getPeerID());
+                    preferredRounds.put(p, chokeRound);
                 } else {
                     // choke
-                    ent.getValue().setDataChoke(true);
+                    p.setDataChoke(true);
                 }
-                idx++;
             }
         } catch (IOException ex) {
             Bootstrap.stackExit(ex);
         }
+        preferredRounds.keySet().retainAll(rates.keySet()); // forget peers that left or finished
         Logger.INSTANCE.println("Peer <" + getClientID() + "> has the preferred neighbors " + neighborIDs.toString() + ".");
     }
 
+    // only called by the data unchoke timer
+    private int lastPreferred(Peer p) {
+        Integer round = preferredRounds.get(p);
+        return round == null ? 0 : round;
+    }
+
     public void randomUnchoke() {
         // will be called by a timer asynchronously
         ArrayList<Peer> chokedPeers = new ArrayList<Peer>();
@@ -196,16 +487,39 @@ public class Client implements Runnable {
         Logger.INSTANCE.println(
                 "Starting client with ID <" + getClientID() +
                 "> on port <" + clientCfg.getPort() + ">");
-        connectToLowerPeers();
+        uploadScheduler.start();
+        if (pieceCache != null) pieceCache.start();
+        if (getTrackerPort() == 0) {
+            connectToLowerPeers();
+        } else {
+            startAnnouncer();
+        }
         startDataUnchoker();
         startRandomUnchoker();
+        startHaveFlusher();
+        startRequestTimer();
+        if (pieceCache != null) startPrefetcher();
         startShutdownThread();
         // listen for higher peers
         try {
-            ServerSocket server = new ServerSocket(clientCfg.getPort());
+            ServerSocket server = SocketProfile.listen(clientCfg.getPort());
             do {
                 Socket socket = server.accept();
-                Peer p = new Peer(socket, this);
+                // our end of the stream gets the same options as the dialing end
+                SocketProfile.apply(socket);
+                Connection conn = new Connection(socket);
+                Handshake hs = Handshake.exchange(conn, getClientID(), Peer.FEATURES);
+                if (hs.hasFeature(Handshake.FEATURE_ATTACH)) {
+                    // extra data stream for a peer we already know
+                    Peer p = findPeer(hs.getPeerID());
+                    if (p == null) {
+                        conn.close();
+                        continue;
+                    }
+                    p.attachStream(conn);
+                    continue;
+                }
+                Peer p = new Peer(conn, hs, this);
                 addPeer(p);
                 Logger.INSTANCE.println("Peer <" + getClientID() + "> is connected from Peer <" + p.getPeerID() + ">");
             } while(true);
@@ -217,21 +531,76 @@ public class Client implements Runnable {
 
     private void connect(PeerConfig pConfig) throws IOException {
         // open socket to pConfig.
-        Socket socket = new Socket(pConfig.getHost(), pConfig.getPort());
-        Peer p = new Peer(socket, this);
+        // goes through the relay instead, when one is set up. the relay
+        // only knows about peers in PeerInfo.cfg
+        int port = pConfig.getPort();
+        if (PeerConfig.find(pConfig.getPeerID()) != null) port += getRelayPortOffset();
+        Connection conn = new Connection(SocketProfile.connect(pConfig.getHost(), port));
+        Handshake hs = Handshake.exchange(conn, getClientID(), Peer.FEATURES);
+        if (hs.getPeerID() != pConfig.getPeerID()) {
+            // someone else has that port now
+            conn.close();
+            throw new IOException("Expected Peer <" + pConfig.getPeerID() + ">, got Peer <" + hs.getPeerID() + ">");
+        }
+        Peer p = new Peer(conn, hs, this);
         addPeer(p);
         Logger.INSTANCE.println("Peer <" + getClientID() + "> makes a connection to Peer <" + p.getPeerID() + ">");
+        if (!p.takesExtraStreams()) return;
+        // open the rest of the data streams, which only carry pieces.
+        // the peer is already in use, so if one fails it just keeps the
+        // streams it has, requests and uploads go by what's attached
+        for (int i = 1; i < getParallelStreams(); i++) {
+            Connection stripe = null;
+            try {
+                stripe = new Connection(SocketProfile.connect(pConfig.getHost(), port));
+                Handshake.exchange(stripe, getClientID(), Handshake.FEATURE_ATTACH);
+            } catch (IOException ex) {
+                if (stripe != null) stripe.close();
+                Logger.INSTANCE.println("Peer <" + getClientID() + "> only got " + p.getNumStreams() + " streams to Peer <" + p.getPeerID() + ">: " + ex);
+                return;
+            }
+            p.attachStream(stripe);
+        }
     }
 
-    private void writeFile() {
-        File out = new File(
+    private File getOutputFile() {
+        return new File(
                 "./peer_" + clientCfg.getPeerID() + "/" + CommonConfig.getFileName());
+    }
+
+    // only writes the file once, whoever gets here first. anyone else
+    // waits for that write to finish, so the shutdown thread can't exit
+    // while a peer thread is still writing
+    private void writeFile() {
+        synchronized (FILE_LOCK) {
+            if (fileWritten) return;
+            saveFile();
+            fileWritten = true;
+        }
+    }
+
+    // only called with FILE_LOCK held
+    private void saveFile() {
+        File out = getOutputFile();
         out.getParentFile().mkdirs();
+        if (pieceFile != null) {
+            try {
+                if (pieceFile.getFile().equals(out)) {
+                    // every piece was already written into place
+                    pieceFile.flush();
+                } else {
+                    Files.copy(pieceFile.getFile().toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                Bootstrap.stackExit(e);
+            }
+            return;
+        }
         try {
             FileOutputStream outstream = new FileOutputStream(out);
-            for(int i = 0; i < fileMap.length; i++) {
+            for(int i = 0; i < pieceState.getNumPieces(); i++) {
                 // write i-th piece to file
-                outstream.write(fileMap[i]);
+                outstream.write(pieceState.getPiece(i));
             }
             outstream.close();
         } catch (IOException e) {
@@ -253,6 +622,42 @@ public class Client implements Runnable {
         }
     }
 
+    // like connectToLowerPeers, but for whoever the tracker knows about
+    // only called by the announcer thread
+    private void announce() {
+        List<PeerConfig> live;
+        try {
+            live = Tracker.announce(clientCfg);
+        } catch (IOException ex) {
+            Logger.INSTANCE.println("Peer <" + getClientID() + "> couldn't reach the tracker, retrying.");
+            return;
+        }
+        for (PeerConfig pConfig : live) {
+            seenIDs.add(pConfig.getPeerID());
+            // higher peers connect to us, same as without a tracker
+            if (pConfig.getPeerID() >= getClientID() || findPeer(pConfig.getPeerID()) != null) continue;
+            try {
+                connect(pConfig);
+            } catch (IOException ex) {
+                Logger.INSTANCE.println("Error connecting to peer <" + pConfig.getPeerID() + ">, retrying.");
+            }
+        }
+        members = live;
+    }
+
+    private void startAnnouncer() {
+        new Thread("Announcer Thread") {
+            public void run() {
+                while (true) {
+                    announce();
+                    try {
+                        Thread.sleep(CommonConfig.getAnnounceInterval());
+                    } catch (InterruptedException ex) { continue; }
+                }
+            }
+        }.start();
+    }
+
     private void startDataUnchoker() {
         new Thread("Data Unchoker Thread") {
             long lastChoke = 0;
@@ -289,13 +694,60 @@ public class Client implements Runnable {
         }.start();
     }
 
+    private void startHaveFlusher() {
+        new Thread("Have Flusher Thread") {
+            public void run() {
+                while (true) {
+                    flushHavePackets();
+                    try {
+                        Thread.sleep(CommonConfig.getHaveBatchInterval());
+                    } catch (InterruptedException ex) { continue; }
+                }
+            }
+        }.start();
+    }
+
+    private void startPrefetcher() {
+        new Thread("Prefetch Timer Thread") {
+            public void run() {
+                while (true) {
+                    prefetchForPeers();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) { continue; }
+                }
+            }
+        }.start();
+    }
+
+    private void startRequestTimer() {
+        new Thread("Request Timer Thread") {
+            public void run() {
+                while (true) {
+                    requestTracker.checkDeadlines();
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) { continue; }
+                }
+            }
+        }.start();
+    }
+
     private void startShutdownThread() {
         new Thread("Shutdown Thread") {
             public void run() {
                 while (true) {
-                    if (getNumMissingPieces() == 0 && numPeersDone() == PeerConfig.PEER_CONFIGS.size()-1) {
+                    if (getNumMissingPieces() == 0 && isSwarmDone()) {
                         Logger.INSTANCE.println("Peer <" + getClientID() + "> terminating since all peers are done downloading.");
                         writeFile();
+                        if (pieceCache != null) {
+                            Logger.INSTANCE.println("Peer <" + getClientID() + "> piece cache: " + pieceCache.getStats());
+                        }
+                        if (getTrackerPort() != 0) {
+                            try {
+                                Tracker.leave(clientCfg);
+                            } catch (IOException ex) { } // it'll time us out
+                        }
                         System.exit(0);
                     }
                     try {
@@ -0,0 +1,89 @@
+package com.networking.model;
+
+import java.util.*;
+
+/**
+ * Picks how many preferred neighbors to unchoke, based on how much we
+ * managed to upload during the last unchoking interval. It climbs one slot
+ * at a time: as long as a change raised the total upload rate it keeps
+ * going the same way, and once a change stops paying off it steps back and
+ * holds there for a while before probing again. Flat results count against
+ * growing, since more slots just split the same uplink into slower peers.
+ */
+public class NeighborTuner {
+    private static final double GAIN = 1.1; // total must move by 10% to count
+    private static final int HOLD_ROUNDS = 5; // rounds to sit still after stepping back
+
+    private final int min, max;
+    private int slots;
+    private int step = 1; // +1 while growing, -1 while shrinking
+    private double lastTotal = -1; // total upload rate with the current slots
+    private final double[] totals; // last total seen with each slot count, -1 if none
+    private int hold = 0;
+
+    public NeighborTuner(int initial, int min, int max) {
+        this.min = Math.max(1, min);
+        this.max = Math.max(this.min, max);
+        slots = Math.min(this.max, Math.max(this.min, initial));
+        totals = new double[this.max+1];
+        Arrays.fill(totals, -1);
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    // only called by the data unchoke timer, once per round. total is the
+    // upload rate to all peers in bytes per ms, wanting is how many peers
+    // could have used a slot
+    public int update(double total, int wanting) {
+        if (wanting <= slots || total <= 0) {
+            // some slots went unused, or nobody asked for anything yet, so
+            // the total says nothing about them
+            lastTotal = -1;
+            Arrays.fill(totals, -1);
+            return slots;
+        }
+        totals[slots] = total;
+        if (lastTotal < 0 || hold > 0) {
+            // first real sample with these slots
+            if (hold > 0) hold--;
+            lastTotal = total;
+            if (hold > 0) return slots;
+            return move(step);
+        }
+        if (total > GAIN*lastTotal) {
+            // the last change paid off, keep going
+            lastTotal = total;
+            return move(step);
+        }
+        if (step > 0 || total*GAIN < bestAbove()) {
+            // growing didn't help, or shrinking hurt: undo it and sit still.
+            // shrinking is held against every count above us, not just the
+            // last one, so small losses can't add up one step at a time
+            step = -step;
+            hold = HOLD_ROUNDS;
+            lastTotal = -1;
+            return move(step);
+        }
+        // shrinking cost nothing, the remaining peers just got faster
+        lastTotal = total;
+        return move(step);
+    }
+
+    private double bestAbove() {
+        double best = -1;
+        for (int s = slots+1; s <= max; s++) best = Math.max(best, totals[s]);
+        return best;
+    }
+
+    private int move(int by) {
+        int next = Math.min(max, Math.max(min, slots+by));
+        if (next == slots) {
+            // hit a bound, come back from it next time
+            step = slots == max ? -1 : 1;
+        }
+        slots = next;
+        return slots;
+    }
+}
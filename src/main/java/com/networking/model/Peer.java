@@ -6,26 +6,24 @@ import com.networking.misc.*;
 import com.networking.net.*;
 
 import java.io.*;
-import java.net.*;
-import java.nio.charset.*;
 import java.util.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Handles a peer that we're connected to.
  */
 public class Peer extends Thread {
-    private static final Charset ASCII = Charset.forName("US-ASCII");
-    private static final String HANDSHAKE_HEADER_STR = "P2PFILESHARINGPROJ";
-    private static final byte[] HANDSHAKE_HEADER_BYTES =
-            HANDSHAKE_HEADER_STR.getBytes(ASCII);
-    private static final int BLANK_BYTE_LENGTH = 10;
+    public static final byte FEATURES =
+            Handshake.FEATURE_FAST_HAVE | Handshake.FEATURE_STREAMS;
 
     private final int peerID;
     private final Client client;
+    private final boolean fastHave; // HAVE_MULTI, HAVE_ALL and HAVE_NONE are ok
+    private final boolean multiStream; // peer takes extra data streams
 
-    private final Object SOCKET_LOCK = new Object();
-    private final DataOutputStream dos;
-    private final DataInputStream dis;
+    private final Connection conn; // the stream we handshook on, carries everything
+    private final ArrayList<Connection> stripes = new ArrayList<Connection>(); // extra streams, pieces only
+    private int nextStripe = 0; // round robin over conn and stripes for pieces
 
     private long timeCreated = System.currentTimeMillis();
     private final Object BITFIELD_LOCK = new Object();
@@ -37,29 +35,23 @@ public class Peer extends Thread {
     private boolean areWeChoked = true; // has this peer choked our client
 
     private long totalBytesDownloaded = 0;
-    private boolean interested = false; // initially not interested
+    private final AtomicLong bytesUploaded = new AtomicLong(); // since uploadWindowStart
+    private volatile long uploadWindowStart = System.currentTimeMillis();
+    private volatile boolean interested = false; // initially not interested
+    private final Object INTEREST_LOCK = new Object();
+    private Boolean weAreInterested = null; // what we last told the peer, null if nothing, only touched with INTEREST_LOCK
 
-    private boolean requested = false; // initially no pieces requested
+    private final Object HAVE_LOCK = new Object();
+    private final ArrayList<Integer> pendingHaves = new ArrayList<Integer>();
 
-    public Peer(Socket sock, Client client) throws IOException {
+    // the handshake has already been exchanged over conn
+    public Peer(Connection conn, Handshake handshake, Client client) {
         this.client = client;
-        dos = new DataOutputStream(sock.getOutputStream());
-        dis = new DataInputStream(sock.getInputStream());
-        // write handshake
-        dos.write(HANDSHAKE_HEADER_BYTES, 0, HANDSHAKE_HEADER_BYTES.length);
-        for (int i = 0; i < BLANK_BYTE_LENGTH; i++) {
-            dos.writeByte(0x0);
-        }
-        dos.writeInt(client.getClientID());
-        dos.flush(); // flush stream
-        // read handshake
-        byte[] headerBytes = new byte[HANDSHAKE_HEADER_BYTES.length];
-        dis.readFully(headerBytes);
-        String header = new String(headerBytes, ASCII);
-        if (!header.equals(HANDSHAKE_HEADER_STR))
-            throw new RuntimeException("Invalid peer handshake, got <" + header + ">");
-        dis.skipBytes(BLANK_BYTE_LENGTH);
-        peerID = dis.readInt();
+        this.conn = conn;
+        peerID = handshake.getPeerID();
+        fastHave = handshake.hasFeature(Handshake.FEATURE_FAST_HAVE);
+        multiStream = handshake.hasFeature(Handshake.FEATURE_STREAMS);
+        conn.traceAs(peerID, 0);
     }
 
     public int getPeerID() {
@@ -70,11 +62,73 @@ public class Peer extends Thread {
         return client;
     }
 
+    public boolean takesExtraStreams() {
+        return multiStream;
+    }
+
+    public int getNumStreams() {
+        synchronized (stripes) {
+            return 1 + stripes.size();
+        }
+    }
+
+    // adds an extra data stream, whose handshake has already been exchanged
+    public void attachStream(final Connection stripe) {
+        synchronized (stripes) {
+            stripes.add(stripe);
+            stripe.traceAs(peerID, stripes.size());
+        }
+        new Thread("Peer " + peerID + " Stripe Thread") {
+            public void run() {
+                try {
+                    do {
+                        Packet p = stripe.readPacket();
+                        if (p == null) break;
+                        handleStripePacket(p);
+                    } while (true);
+                } catch (IOException ex) {
+                    Bootstrap.stackExit(ex);
+                }
+                synchronized (stripes) {
+                    stripes.remove(stripe);
+                }
+            }
+        }.start();
+    }
+
     public double getDownloadRate() {
         if (System.currentTimeMillis() == timeCreated) return 0.;
         return 1.*totalBytesDownloaded/(System.currentTimeMillis()-timeCreated);
     }
 
+    // bytes per ms we've uploaded to this peer since the last call, which
+    // starts a new measuring window
+    public double takeUploadRate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - uploadWindowStart;
+        uploadWindowStart = now;
+        long bytes = bytesUploaded.getAndSet(0);
+        return elapsed <= 0 ? 0. : 1.*bytes/elapsed;
+    }
+
+    public boolean isInterested() {
+        return interested;
+    }
+
+    // a copy of the peer's pieces, can get called by any thread
+    public BitSet getBitfield() {
+        synchronized (BITFIELD_LOCK) {
+            return (BitSet) bitfield.clone();
+        }
+    }
+
+    // how many pieces the peer has, can get called by Client threads
+    public int getNumPieces() {
+        synchronized (BITFIELD_LOCK) {
+            return bitfield.cardinality();
+        }
+    }
+
     public boolean isChoked() {
         synchronized (CHOKE_LOCK) {
             return dataChoked && randomChoked;
@@ -114,7 +168,8 @@ public class Peer extends Thread {
                 timeCreated = System.currentTimeMillis();
                 sendUnchokePacket();
             } else if (!isOldChoked && isNewChoked) {
-                // choking
+                // choking, drop anything we haven't uploaded yet
+                getClient().getUploadScheduler().cancel(this);
                 sendChokePacket();
             }
         }
@@ -131,7 +186,8 @@ public class Peer extends Thread {
                 totalBytesDownloaded = 0;
                 sendUnchokePacket();
             } else if (!isOldChoked && isNewChoked) {
-                // choking
+                // choking, drop anything we haven't uploaded yet
+                getClient().getUploadScheduler().cancel(this);
                 sendChokePacket();
             }
         }
@@ -144,35 +200,101 @@ public class Peer extends Thread {
             sendBitfieldPacket();
             // read packets!
             do {
-                Packet p = readPacket();
+                Packet p = conn.readPacket();
                 if (p == null) break;
                 handlePacket(p);
+                checkDone(p);
                 // request download after we read each packet
                 requestDownload();
             } while (true);
+            // peer went away, nothing left to upload to it, and anything
+            // we asked it for has to come from someone else
+            getClient().removePeer(this);
+            getClient().getUploadScheduler().cancel(this);
+            getClient().getRequestTracker().disconnected(this);
+            setBitfield(new BitSet()); // its pieces aren't available anymore
+            conn.close();
+            synchronized (stripes) {
+                // their threads take them off the list once they notice
+                for (Connection stripe : stripes) stripe.close();
+            }
         } catch (IOException ex) {
             Bootstrap.stackExit(ex);
         }
     }
 
+    // tells the client once this peer has everything, so it still counts
+    // as done after it disconnects
+    // only called by peer thread
+    private void checkDone(Packet p) {
+        switch (p.getPacketType()) {
+            case HAVE:
+            case HAVE_MULTI:
+            case HAVE_ALL:
+            case BITFIELD:
+                if (hasCompleteFile()) getClient().peerDone(getPeerID());
+                return;
+            default:
+                return;
+        }
+    }
+
     // gets called by Client
     public void sendHavePacket(int pieceID) throws IOException {
+        if (fastHave) {
+            // batched up until the next flushHavePackets()
+            synchronized (HAVE_LOCK) {
+                pendingHaves.add(pieceID);
+            }
+            return;
+        }
         Packet havePacket = new Packet(Packet.PacketType.HAVE, Packet.serializeInt(pieceID));
         sendPacket(havePacket);
     }
 
-    // only called by peer thread
-    private void requestDownload() throws IOException {
-        // if we're choked or there's already a download request to this peer,
-        // we can't download
-        if (areWeChoked() || requested) return;
-        int requestPiece = getClient().getMissingPiece(bitfield);
-        if (requestPiece == -1) {
-            // this peer doesnt have a piece we need, or we're done.
-            return;
+    // gets called by Client once we have every piece. this stands in for
+    // whatever is still batched, including 'have's other peer threads
+    // haven't queued yet, so none of them can get lost at the end
+    public void sendHaveAllPacket() throws IOException {
+        if (!fastHave) return; // every 'have' already went out by itself
+        synchronized (HAVE_LOCK) {
+            pendingHaves.clear();
+            sendPacket(new Packet(Packet.PacketType.HAVE_ALL, new byte[0]));
+        }
+    }
+
+    // gets called by Client
+    public void flushHavePackets() throws IOException {
+        synchronized (HAVE_LOCK) {
+            if (pendingHaves.isEmpty()) return;
+            Packet havePacket;
+            if (pendingHaves.size() == 1) {
+                havePacket = new Packet(Packet.PacketType.HAVE, Packet.serializeInt(pendingHaves.get(0)));
+            } else {
+                havePacket = new Packet(Packet.PacketType.HAVE_MULTI, Packet.serializeInts(pendingHaves));
+            }
+            pendingHaves.clear();
+            // still under HAVE_LOCK so batches go out in order
+            sendPacket(havePacket);
+        }
+    }
+
+    // called by peer thread and stripe threads
+    private synchronized void requestDownload() throws IOException {
+        // if we're choked or every stream already has a download request
+        // to this peer, we can't download
+        BitSet has = null; // the peer thread may change bitfield meanwhile
+        while (!areWeChoked()
+                && getClient().getRequestTracker().getNumRequests(this) < getNumStreams()) {
+            if (has == null) has = getBitfield();
+            int requestPiece = getClient().getMissingPiece(has);
+            if (requestPiece == -1) {
+                // this peer doesnt have a piece we need, or we're done.
+                return;
+            }
+            getClient().getRequestTracker().started(this, requestPiece);
+            sendRequestPacket(requestPiece);
         }
-        sendRequestPacket(requestPiece);
-        requested = true;
     }
 
     // potentially called by client thread using setDataChoke/setRandomChoke
@@ -195,32 +317,89 @@ public class Peer extends Thread {
         sendPacket(requestPacket);
     }
 
-    // only called by peer thread
-    private void sendPiecePacket(int pieceId, byte[] pieceArr) throws IOException {
+    // only called by upload worker threads
+    void sendPiecePacket(int pieceId, byte[] pieceArr) throws IOException {
         byte[] payload = Packet.mergePayloads(Packet.serializeInt(pieceId), pieceArr);
         Packet piecePacket = new Packet(Packet.PacketType.PIECE, payload);
-        sendPacket(piecePacket);
+        // pieces get striped over every stream we have to this peer
+        Connection out = conn;
+        synchronized (stripes) {
+            int idx = nextStripe++ % (1 + stripes.size());
+            if (idx > 0) out = stripes.get(idx-1);
+        }
+        send(out, piecePacket);
+        bytesUploaded.addAndGet(pieceArr.length);
     }
 
     // only called by peer thread
     private void sendBitfieldPacket() throws IOException {
-        byte[] payload = getClient().getBitfieldArray();
-        Packet bitPacket = new Packet(Packet.PacketType.BITFIELD, payload);
+        int missing = getClient().getNumMissingPieces();
+        Packet bitPacket;
+        if (fastHave && missing == 0) {
+            bitPacket = new Packet(Packet.PacketType.HAVE_ALL, new byte[0]);
+        } else if (fastHave && missing == CommonConfig.getNumFilePieces()) {
+            bitPacket = new Packet(Packet.PacketType.HAVE_NONE, new byte[0]);
+        } else {
+            byte[] payload = getClient().getBitfieldArray();
+            bitPacket = new Packet(Packet.PacketType.BITFIELD, payload);
+        }
         sendPacket(bitPacket);
     }
 
-    // only called by peer thread
+    // only called with INTEREST_LOCK held
     private void sendInterestedPacket() throws IOException {
         Packet intPacket = new Packet(Packet.PacketType.INTERESTED, new byte[0]);
         sendPacket(intPacket);
     }
 
-    // only called by peer thread
+    // only called with INTEREST_LOCK held
     private void sendNotInterestedPacket() throws IOException {
         Packet nIntPacket = new Packet(Packet.PacketType.NOT_INTERESTED, new byte[0]);
         sendPacket(nIntPacket);
     }
 
+    // gets called by Client whenever we get a piece, from whichever peer.
+    // if this peer had it too, it may have nothing left that we need
+    public void pieceArrived(int pieceID) throws IOException {
+        synchronized (BITFIELD_LOCK) {
+            if (!bitfield.get(pieceID)) return;
+        }
+        updateInterest();
+    }
+
+    // tells the peer whether it has anything we need, but only if that
+    // changed since the last time we told it
+    // called by peer thread, and by whoever sets a piece
+    private void updateInterest() throws IOException {
+        synchronized (INTEREST_LOCK) {
+            boolean nowInterested = false;
+            synchronized (BITFIELD_LOCK) {
+                for (int piece = bitfield.nextSetBit(0);
+                        piece >= 0 && piece < CommonConfig.getNumFilePieces();
+                        piece = bitfield.nextSetBit(piece+1)) {
+                    if (!getClient().hasPiece(piece)) {
+                        // peer has <bit> that we don't have
+                        nowInterested = true;
+                        break;
+                    }
+                }
+            }
+            setWeAreInterested(nowInterested);
+        }
+    }
+
+    private void setWeAreInterested(boolean val) throws IOException {
+        synchronized (INTEREST_LOCK) {
+            if (weAreInterested != null && weAreInterested == val) return;
+            weAreInterested = val;
+            if (val) {
+                sendInterestedPacket();
+            } else {
+                sendNotInterestedPacket();
+            }
+        }
+    }
+
     // only called by peer thread
     private void handlePacket(Packet packet) throws IOException {
         switch (packet.getPacketType()) {
@@ -248,6 +427,15 @@ public class Peer extends Thread {
             case PIECE:
                 handlePiecePacket(packet);
                 break;
+            case HAVE_MULTI:
+                handleHaveMultiPacket(packet);
+                break;
+            case HAVE_ALL:
+                handleHaveAllPacket(packet);
+                break;
+            case HAVE_NONE:
+                handleHaveNonePacket(packet);
+                break;
             default:
                 Logger.INSTANCE.println("Unhandled packet type: " + packet.getPacketType());
         }
@@ -258,6 +446,9 @@ public class Peer extends Thread {
         // can't do anything in this case
         Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> is choked by Peer <" + getPeerID() + ">");
         setAreWeChoked(true);
+        // the peer drops our pending request when it chokes us, so let
+        // another peer serve that piece
+        getClient().getRequestTracker().abort(this);
     }
 
     private synchronized void handleUnchokePacket(Packet packet) throws IOException {
@@ -267,13 +458,14 @@ public class Peer extends Thread {
         setAreWeChoked(false);
     }
 
-    private synchronized void handleRequestPacket(Packet packet) throws IOException {
+    private void handleRequestPacket(Packet packet) throws IOException {
         int pieceId = Packet.deserializeInt(packet.getPayload());
-        byte[] pieceArr = getClient().getPiece(pieceId);
-        if (pieceArr != null) {
+        if (pieceId >= 0 && pieceId < CommonConfig.getNumFilePieces()
+                && getClient().hasPiece(pieceId)) {
             // this line isn't actually required by project spec.
             //Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> got piece <" + pieceId + "> requested BY Peer <" + getPeerID() + ">");
-            sendPiecePacket(pieceId, pieceArr);
+            // upload workers send the piece, so we can go back to reading
+            getClient().getUploadScheduler().enqueue(this, pieceId);
         } else {
             // invalid piece...throw runtime exception
             throw new RuntimeException("Invalid piece <" + pieceId + "> requested by Peer <" + getPeerID() + ">");
@@ -289,7 +481,7 @@ public class Peer extends Thread {
         }
         getClient().setPiece(pieceId, piece);
         totalBytesDownloaded += piece.length;
-        requested = false;
+        getClient().getRequestTracker().finished(this, pieceId);
         int missing = getClient().getNumMissingPieces();
         int numPieces = CommonConfig.getNumFilePieces()-missing;
         Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> has downloaded the piece <" + pieceId + "> from Peer <" + getPeerID() + ">.\nNow the number of pieces it has is " + numPieces + ".");
@@ -302,28 +494,73 @@ public class Peer extends Thread {
         int pieceId = Packet.deserializeInt(packet.getPayload());
         Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> received the 'have' message from Peer <" + getPeerID() + "> for the piece <" + pieceId + ">");
         synchronized (BITFIELD_LOCK) {
-            bitfield.set(pieceId, true);
+            markHave(pieceId);
         }
-        if (!getClient().hasPiece(pieceId)) {
-            sendInterestedPacket();
+        // checked under INTEREST_LOCK, so the piece arriving meanwhile
+        // can't leave us interested
+        synchronized (INTEREST_LOCK) {
+            if (!getClient().hasPiece(pieceId)) setWeAreInterested(true);
         }
     }
 
-    // handles only get called by peer thread
-    private void handleBitfieldPacket(Packet packet) throws IOException {
+    private void handleHaveMultiPacket(Packet packet) throws IOException {
         byte[] payload = packet.getPayload();
+        ArrayList<Integer> pieceIds = new ArrayList<Integer>();
+        for (int off = 0; off+4 <= payload.length; off += 4) {
+            pieceIds.add(Packet.deserializeInt(payload, off));
+        }
+        Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> received the 'have' message from Peer <" + getPeerID() + "> for the pieces " + pieceIds.toString());
         synchronized (BITFIELD_LOCK) {
-            bitfield = BitSet.valueOf(payload);
-            for (int piece = 0; piece < CommonConfig.getNumFilePieces(); piece++) {
-                if (bitfield.get(piece) && !getClient().hasPiece(piece)) {
-                    // peer has <bit> that we don't have
-                    sendInterestedPacket();
+            for (int pieceId : pieceIds) markHave(pieceId);
+        }
+        synchronized (INTEREST_LOCK) {
+            for (int pieceId : pieceIds) {
+                if (!getClient().hasPiece(pieceId)) {
+                    setWeAreInterested(true);
                     break;
                 }
             }
         }
     }
 
+    // handles only get called by peer thread
+    private void handleBitfieldPacket(Packet packet) throws IOException {
+        byte[] payload = packet.getPayload();
+        setBitfield(BitSet.valueOf(payload));
+        updateInterest();
+    }
+
+    // handles only get called by peer thread
+    private void handleHaveAllPacket(Packet packet) throws IOException {
+        BitSet all = new BitSet();
+        all.set(0, CommonConfig.getNumFilePieces());
+        setBitfield(all);
+        updateInterest();
+    }
+
+    // handles only get called by peer thread
+    private void handleHaveNonePacket(Packet packet) throws IOException {
+        setBitfield(new BitSet());
+        updateInterest();
+    }
+
+    // only called with BITFIELD_LOCK held
+    private void markHave(int pieceId) {
+        if (bitfield.get(pieceId)) return;
+        bitfield.set(pieceId, true);
+        getClient().changeAvailability(pieceId, 1);
+    }
+
+    // swaps in a whole new bitfield, keeping the client's piece
+    // availability counts in step
+    private void setBitfield(BitSet newBitfield) {
+        synchronized (BITFIELD_LOCK) {
+            getClient().changeAvailability(bitfield, -1);
+            bitfield = newBitfield;
+            getClient().changeAvailability(bitfield, 1);
+        }
+    }
+
     // handles only get called by peer thread
     private void handleInterestedPacket(Packet packet) throws IOException {
         interested = true;
@@ -336,26 +573,32 @@ public class Peer extends Thread {
         Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> received the 'not interested' message from Peer <" + getPeerID() + ">");
     }
 
-    // this function blocks until it reads a full packet
-    // only gets called by peer thread
-    private Packet readPacket() {
-        try {
-            int payloadLength = dis.readInt();
-            byte type = dis.readByte();
-            byte[] payload = new byte[payloadLength];
-            dis.readFully(payload);
-            return new Packet(Packet.PacketType.values()[(int)type], payload);
-        } catch (IOException ex) { return null; }
+    // only gets called by stripe threads, which only ever carry pieces
+    private void handleStripePacket(Packet packet) throws IOException {
+        if (packet.getPacketType() != Packet.PacketType.PIECE) {
+            Logger.INSTANCE.println("Unexpected packet type on extra stream: " + packet.getPacketType());
+            return;
+        }
+        handlePiecePacket(packet);
+        // keep this stream busy
+        requestDownload();
     }
 
     // this function sends a packet down the wire
     // potentially can get called by different threads
     private void sendPacket(Packet p) throws IOException {
-        synchronized (SOCKET_LOCK) {
-            dos.writeInt(p.getPayload().length);
-            dos.write(p.getPacketType().ordinal());
-            dos.write(p.getPayload(), 0, p.getPayload().length);
-            dos.flush();
+        send(conn, p);
+    }
+
+    // a peer going away isn't fatal, closing the connection makes the peer
+    // thread notice and clean up after it
+    private void send(Connection c, Packet p) {
+        try {
+            c.sendPacket(p);
+        } catch (IOException ex) {
+            Logger.INSTANCE.println("Peer <" + getClient().getClientID() + "> lost the connection to Peer <" + getPeerID() + ">.");
+            c.close();
+            conn.close();
         }
     }
 }
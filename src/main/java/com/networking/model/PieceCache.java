@@ -0,0 +1,150 @@
+package com.networking.model;
+
+import com.networking.*;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A byte-bounded cache of pieces read from a PieceFile, kept off-heap.
+ *
+ * Eviction is segmented LRU: new pieces start out in a probation segment
+ * and only move into the protected segment when they are hit again, so a
+ * peer sweeping through every piece once can't flush out the pieces that
+ * everyone keeps asking for. Pieces that unchoked peers are missing, and
+ * pieces that are queued for upload, get prefetched in the background, so
+ * the upload worker finds them in memory.
+ */
+public class PieceCache {
+    private static final double PROTECTED_SHARE = 0.8; // of the byte budget
+    private static final int PREFETCH_QUEUE = 256; // further ahead isn't worth it
+
+    private final PieceFile pieceFile;
+    private final long budget;
+
+    private final Object CACHE_LOCK = new Object(); // lock for everything below
+    // access ordered, so iteration starts at the least recently used piece
+    private final LinkedHashMap<Integer, ByteBuffer> probation =
+            new LinkedHashMap<Integer, ByteBuffer>(16, .75f, true);
+    private final LinkedHashMap<Integer, ByteBuffer> protect =
+            new LinkedHashMap<Integer, ByteBuffer>(16, .75f, true);
+    private long probationBytes = 0, protectBytes = 0;
+    private long hits = 0, misses = 0, evictions = 0, prefetches = 0;
+
+    private final LinkedBlockingQueue<Integer> prefetchQueue =
+            new LinkedBlockingQueue<Integer>(PREFETCH_QUEUE);
+
+    public PieceCache(PieceFile pieceFile, long budget) {
+        this.pieceFile = pieceFile;
+        this.budget = budget;
+    }
+
+    public void start() {
+        new Thread("Piece Prefetch Thread") {
+            public void run() {
+                while (true) {
+                    try {
+                        int pieceID = prefetchQueue.take();
+                        if (contains(pieceID)) continue;
+                        insert(pieceID, pieceFile.read(pieceID));
+                        synchronized (CACHE_LOCK) {
+                            prefetches++;
+                        }
+                    } catch (InterruptedException ex) {
+                        continue;
+                    } catch (IOException ex) {
+                        Bootstrap.stackExit(ex);
+                    }
+                }
+            }
+        }.start();
+    }
+
+    public byte[] get(int pieceID) throws IOException {
+        synchronized (CACHE_LOCK) {
+            ByteBuffer buf = probation.remove(pieceID);
+            if (buf != null) {
+                // second hit, it has earned a spot in the protected segment
+                probationBytes -= buf.capacity();
+                protect.put(pieceID, buf);
+                protectBytes += buf.capacity();
+                demote();
+            } else {
+                buf = protect.get(pieceID);
+            }
+            if (buf != null) {
+                hits++;
+                return copy(buf);
+            }
+            misses++;
+        }
+        // read outside of the lock, so hits don't wait on the disk
+        byte[] pieceArr = pieceFile.read(pieceID);
+        insert(pieceID, pieceArr);
+        return pieceArr;
+    }
+
+    // asks for a piece to be loaded soon, drops the hint if we're behind
+    public void prefetch(int pieceID) {
+        prefetchQueue.offer(pieceID);
+    }
+
+    public String getStats() {
+        synchronized (CACHE_LOCK) {
+            long total = hits + misses;
+            return String.format("hits %d, misses %d (%.1f%% hit rate), evictions %d, prefetches %d, %d/%d bytes used",
+                    hits, misses, total == 0 ? 0. : 100.*hits/total, evictions, prefetches,
+                    probationBytes + protectBytes, budget);
+        }
+    }
+
+    private boolean contains(int pieceID) {
+        synchronized (CACHE_LOCK) {
+            return probation.containsKey(pieceID) || protect.containsKey(pieceID);
+        }
+    }
+
+    private void insert(int pieceID, byte[] pieceArr) {
+        if (pieceArr.length > budget) return; // would evict everything else
+        ByteBuffer buf = ByteBuffer.allocateDirect(pieceArr.length);
+        buf.put(pieceArr);
+        synchronized (CACHE_LOCK) {
+            if (probation.containsKey(pieceID) || protect.containsKey(pieceID)) return;
+            probation.put(pieceID, buf);
+            probationBytes += buf.capacity();
+            evict();
+        }
+    }
+
+    // only called with CACHE_LOCK held
+    private void demote() {
+        // the protected segment overflows into probation, not straight out
+        Iterator<Map.Entry<Integer, ByteBuffer>> it = protect.entrySet().iterator();
+        while (protectBytes > PROTECTED_SHARE*budget && it.hasNext()) {
+            Map.Entry<Integer, ByteBuffer> ent = it.next();
+            it.remove();
+            protectBytes -= ent.getValue().capacity();
+            probation.put(ent.getKey(), ent.getValue());
+            probationBytes += ent.getValue().capacity();
+        }
+        evict();
+    }
+
+    // only called with CACHE_LOCK held
+    private void evict() {
+        Iterator<Map.Entry<Integer, ByteBuffer>> it = probation.entrySet().iterator();
+        while (probationBytes + protectBytes > budget && it.hasNext()) {
+            probationBytes -= it.next().getValue().capacity();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static byte[] copy(ByteBuffer buf) {
+        byte[] arr = new byte[buf.capacity()];
+        buf.duplicate().clear().get(arr);
+        return arr;
+    }
+}
@@ -0,0 +1,62 @@
+package com.networking.model;
+
+import com.networking.config.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * Keeps pieces on disk, at their offset in the file, instead of on the heap.
+ * Positional reads and writes don't share a file pointer, so any thread can
+ * use it without locking.
+ */
+public class PieceFile {
+    private final File file;
+    private final FileChannel channel;
+
+    public PieceFile(File file, boolean writable) throws IOException {
+        this.file = file;
+        if (writable) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // a longer file left over from an earlier run would keep its tail
+            channel.truncate(CommonConfig.getFileSize());
+        } else {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public static int getPieceLength(int pieceID) {
+        long start = 1L*pieceID*CommonConfig.getPieceSize();
+        return (int) Math.min(CommonConfig.getPieceSize(), CommonConfig.getFileSize()-start);
+    }
+
+    public byte[] read(int pieceID) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(getPieceLength(pieceID));
+        long pos = 1L*pieceID*CommonConfig.getPieceSize();
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos + buf.position());
+            if (n == -1) throw new EOFException("Piece <" + pieceID + "> is past the end of " + file);
+        }
+        return buf.array();
+    }
+
+    public void write(int pieceID, byte[] pieceArr) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(pieceArr);
+        long pos = 1L*pieceID*CommonConfig.getPieceSize();
+        while (buf.hasRemaining()) {
+            channel.write(buf, pos + buf.position());
+        }
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+}
@@ -0,0 +1,54 @@
+package com.networking.model;
+
+import com.networking.config.*;
+
+import java.io.*;
+
+/**
+ * Reads the file from the start while it is still being downloaded. Reads
+ * only block when the next piece hasn't arrived yet, and the piece being
+ * waited on tells the client where the streaming window starts.
+ */
+public class PieceInputStream extends InputStream {
+    private final Client client;
+    private int pieceIdx = 0; // piece we're reading from
+    private int offset = 0; // position inside of that piece
+
+    public PieceInputStream(Client client) {
+        this.client = client;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n == -1 ? -1 : (b[0] & 0xFF);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (pieceIdx >= CommonConfig.getNumFilePieces()) return -1; // end of file
+        byte[] piece;
+        try {
+            piece = client.awaitPiece(pieceIdx);
+        } catch (InterruptedException ex) {
+            throw new InterruptedIOException("Interrupted waiting for piece <" + pieceIdx + ">");
+        }
+        int n = Math.min(len, piece.length-offset);
+        System.arraycopy(piece, offset, b, off, n);
+        offset += n;
+        if (offset == piece.length) {
+            pieceIdx++;
+            offset = 0;
+        }
+        return n;
+    }
+
+    @Override
+    public int available() {
+        if (pieceIdx >= CommonConfig.getNumFilePieces() || !client.hasPiece(pieceIdx)) return 0;
+        // in disk mode getPiece() would read the whole piece just for this
+        return PieceFile.getPieceLength(pieceIdx)-offset;
+    }
+}
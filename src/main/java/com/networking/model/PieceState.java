@@ -0,0 +1,71 @@
+package com.networking.model;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Tracks which pieces the client has, and the pieces themselves, without
+ * any locking. Every peer thread reads this several times per packet, so
+ * reads never block and writes only spin on the one word they touch.
+ *
+ * A piece's bytes are always published before its bit gets set, so anyone
+ * who sees the bit can also see the bytes.
+ */
+public class PieceState {
+    private final int numPieces;
+    private final AtomicLongArray words; // bit i is set once piece i arrives
+    private final AtomicReferenceArray<byte[]> pieces; // each slot is a piece
+    private final AtomicInteger numMissing;
+
+    public PieceState(int numPieces) {
+        this.numPieces = numPieces;
+        words = new AtomicLongArray((numPieces+63)/64);
+        pieces = new AtomicReferenceArray<byte[]>(numPieces);
+        numMissing = new AtomicInteger(numPieces);
+    }
+
+    public int getNumPieces() {
+        return numPieces;
+    }
+
+    public boolean hasPiece(int pieceID) {
+        if (pieceID < 0 || pieceID >= numPieces) return false;
+        return (words.get(pieceID>>>6) & (1L << pieceID)) != 0;
+    }
+
+    public byte[] getPiece(int pieceID) {
+        if (pieceID < 0 || pieceID >= numPieces) return null;
+        return pieces.get(pieceID);
+    }
+
+    public int getNumMissingPieces() {
+        return numMissing.get();
+    }
+
+    /**
+     * Stores a piece and marks it as obtained.
+     * @return true if we didn't have the piece before this call
+     */
+    public boolean setPiece(int pieceID, byte[] pieceArr) {
+        // publish the bytes first, then flip the bit
+        pieces.compareAndSet(pieceID, null, pieceArr);
+        int idx = pieceID>>>6;
+        long mask = 1L << pieceID;
+        while (true) {
+            long old = words.get(idx);
+            if ((old & mask) != 0) return false; // someone beat us to it
+            if (words.compareAndSet(idx, old, old | mask)) break;
+        }
+        numMissing.decrementAndGet();
+        return true;
+    }
+
+    // same layout as BitSet.toByteArray(), which is what goes on the wire
+    public byte[] toByteArray() {
+        long[] snapshot = new long[words.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = words.get(i);
+        }
+        return BitSet.valueOf(snapshot).toByteArray();
+    }
+}
@@ -0,0 +1,150 @@
+package com.networking.model;
+
+import com.networking.misc.*;
+
+import java.util.*;
+
+/**
+ * Keeps track of every piece request we have in flight, so that a piece is
+ * never lost when the peer we asked chokes us, disconnects or just never
+ * answers. Lost pieces go back to the front of the client's piece queue.
+ *
+ * It also learns how long each peer takes to answer. When a request has
+ * been out for much longer than our fastest peer needs, the piece is put
+ * back in the queue so a faster peer can grab it; whichever copy arrives
+ * first wins.
+ */
+public class RequestTracker {
+    private static final double SLOW_FACTOR = 4.; // times slower than the fastest peer
+    private static final long SLOW_MIN_MS = 250; // don't bother below this
+    private static final double LATENCY_WEIGHT = 0.25; // weight of newest sample
+
+    private static class Request {
+        final Peer peer;
+        final int pieceId;
+        final long sentAt;
+        final long deadline;
+        boolean reassigned = false; // piece already went back to the queue
+
+        Request(Peer peer, int pieceId, long sentAt, long deadline) {
+            this.peer = peer;
+            this.pieceId = pieceId;
+            this.sentAt = sentAt;
+            this.deadline = deadline;
+        }
+    }
+
+    private final Client client;
+    private final long timeout;
+
+    private final Object REQUEST_LOCK = new Object(); // lock for both things below
+    private final ArrayList<Request> inFlight = new ArrayList<Request>();
+    private final HashMap<Peer, Double> latencies = new HashMap<Peer, Double>(); // ms, averaged
+
+    public RequestTracker(Client client, long timeout) {
+        this.client = client;
+        this.timeout = timeout;
+    }
+
+    // gets called by peer thread right after sending a request packet
+    public void started(Peer peer, int pieceId) {
+        long now = System.currentTimeMillis();
+        synchronized (REQUEST_LOCK) {
+            inFlight.add(new Request(peer, pieceId, now, now+timeout));
+        }
+    }
+
+    // gets called by peer thread when a piece packet arrives
+    public void finished(Peer peer, int pieceId) {
+        long now = System.currentTimeMillis();
+        synchronized (REQUEST_LOCK) {
+            Iterator<Request> it = inFlight.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (r.peer != peer || r.pieceId != pieceId) continue;
+                it.remove();
+                double sample = now - r.sentAt;
+                Double old = latencies.get(peer);
+                latencies.put(peer, old == null ? sample
+                        : (1-LATENCY_WEIGHT)*old + LATENCY_WEIGHT*sample);
+            }
+        }
+    }
+
+    // gets called when the peer chokes us or goes away, the peer won't
+    // answer anything we asked for
+    public void abort(Peer peer) {
+        ArrayList<Request> lost = new ArrayList<Request>();
+        synchronized (REQUEST_LOCK) {
+            Iterator<Request> it = inFlight.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (r.peer != peer) continue;
+                it.remove();
+                lost.add(r);
+            }
+        }
+        for (Request r : lost) {
+            if (!r.reassigned) client.returnMissingPiece(r.pieceId);
+        }
+    }
+
+    // gets called by peer thread once the connection is gone for good
+    public void disconnected(Peer peer) {
+        abort(peer);
+        synchronized (REQUEST_LOCK) {
+            latencies.remove(peer); // don't hold others to its old speed
+        }
+    }
+
+    public int getNumRequests(Peer peer) {
+        synchronized (REQUEST_LOCK) {
+            int cnt = 0;
+            for (Request r : inFlight) {
+                if (r.peer == peer) ++cnt;
+            }
+            return cnt;
+        }
+    }
+
+    // will be called by a timer asynchronously
+    public void checkDeadlines() {
+        long now = System.currentTimeMillis();
+        ArrayList<Request> lost = new ArrayList<Request>();
+        ArrayList<Request> slow = new ArrayList<Request>();
+        synchronized (REQUEST_LOCK) {
+            Iterator<Request> it = inFlight.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                if (now >= r.deadline) {
+                    // give up on it, the peer is free to be asked again
+                    it.remove();
+                    if (!r.reassigned) lost.add(r);
+                } else if (!r.reassigned && isSlow(r, now)) {
+                    // leave it in flight, but let someone else have a go
+                    r.reassigned = true;
+                    slow.add(r);
+                }
+            }
+        }
+        for (Request r : lost) {
+            Logger.INSTANCE.println("Peer <" + client.getClientID() + "> timed out waiting for the piece <" + r.pieceId + "> from Peer <" + r.peer.getPeerID() + ">.");
+            client.returnMissingPiece(r.pieceId);
+        }
+        for (Request r : slow) {
+            client.returnMissingPiece(r.pieceId);
+        }
+    }
+
+    // only called with REQUEST_LOCK held
+    private boolean isSlow(Request r, long now) {
+        double fastest = Double.MAX_VALUE;
+        for (Map.Entry<Peer, Double> ent : latencies.entrySet()) {
+            if (ent.getKey() == r.peer) continue;
+            fastest = Math.min(fastest, ent.getValue());
+        }
+        if (fastest == Double.MAX_VALUE) return false; // nobody to compare to
+        long elapsed = now - r.sentAt;
+        return elapsed > SLOW_MIN_MS && elapsed > SLOW_FACTOR*fastest;
+    }
+}
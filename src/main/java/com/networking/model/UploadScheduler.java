@@ -0,0 +1,130 @@
+package com.networking.model;
+
+import com.networking.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Serves piece requests from a bounded pool of upload worker threads, so that
+ * peer threads never block on writing a piece while they should be reading.
+ * Requests are queued per peer and peers are served round-robin, one piece
+ * per stream at a time, as long as they stay unchoked.
+ */
+public class UploadScheduler {
+    private static class PeerQueue {
+        final Queue<Integer> pieces = new LinkedList<Integer>();
+        int serving = 0; // workers currently sending to this peer
+        boolean inRing = false;
+    }
+
+    private final Client client;
+    private final int numWorkers;
+
+    private final Object QUEUE_LOCK = new Object(); // lock for both things below
+    private final Map<Peer, PeerQueue> pending = new HashMap<Peer, PeerQueue>();
+    private final LinkedList<Peer> ready = new LinkedList<Peer>(); // peers waiting for a worker
+
+    public UploadScheduler(Client client, int numWorkers) {
+        this.client = client;
+        this.numWorkers = Math.max(1, numWorkers);
+    }
+
+    public void start() {
+        for (int i = 0; i < numWorkers; i++) {
+            new Thread("Upload Worker Thread " + i) {
+                public void run() {
+                    while (true) {
+                        serveNext();
+                    }
+                }
+            }.start();
+        }
+    }
+
+    // gets called by peer thread when a request packet is read
+    public void enqueue(Peer peer, int pieceId) {
+        boolean waiting;
+        synchronized (QUEUE_LOCK) {
+            PeerQueue queue = pending.get(peer);
+            if (queue == null) {
+                queue = new PeerQueue();
+                pending.put(peer, queue);
+            }
+            queue.pieces.add(pieceId);
+            addToRing(peer, queue);
+            waiting = queue.pieces.size() > 1 || queue.serving > 0;
+        }
+        // it has to wait its turn, so start pulling it off the disk now.
+        // this only comes up with parallel streams, the client also warms
+        // the cache from what unchoked peers are missing
+        if (waiting) client.prefetchPiece(pieceId);
+    }
+
+    // gets called when a peer is choked or disconnects
+    public void cancel(Peer peer) {
+        synchronized (QUEUE_LOCK) {
+            PeerQueue queue = pending.get(peer);
+            if (queue == null) return;
+            queue.pieces.clear();
+            // nothing will come back for it, so don't keep peers that left.
+            // otherwise the worker serving it or the ring drops it later
+            if (queue.serving == 0 && !queue.inRing) pending.remove(peer);
+        }
+    }
+
+    // only called with QUEUE_LOCK held
+    private void addToRing(Peer peer, PeerQueue queue) {
+        // a peer never occupies more workers than it has streams, so one
+        // peer can't starve the others
+        if (queue.inRing || queue.pieces.isEmpty()
+                || queue.serving >= peer.getNumStreams()) return;
+        queue.inRing = true;
+        ready.add(peer);
+        QUEUE_LOCK.notify();
+    }
+
+    // only called by upload worker threads
+    private void serveNext() {
+        Peer peer;
+        PeerQueue queue;
+        int pieceId;
+        synchronized (QUEUE_LOCK) {
+            while (ready.isEmpty()) {
+                try {
+                    QUEUE_LOCK.wait();
+                } catch (InterruptedException ex) { }
+            }
+            peer = ready.poll();
+            queue = pending.get(peer);
+            queue.inRing = false;
+            if (queue.pieces.isEmpty()) {
+                // everything got cancelled, wait until it requests again
+                if (queue.serving == 0) pending.remove(peer);
+                return;
+            }
+            pieceId = queue.pieces.poll();
+            queue.serving++;
+            // back of the line, so every unchoked peer gets a turn
+            addToRing(peer, queue);
+        }
+        // checked outside of QUEUE_LOCK, since choking takes the peer's choke
+        // lock first and then cancels through us
+        if (!peer.isChoked()) {
+            byte[] pieceArr = client.getPiece(pieceId);
+            try {
+                peer.sendPiecePacket(pieceId, pieceArr);
+            } catch (IOException ex) {
+                Bootstrap.stackExit(ex);
+            }
+        }
+        synchronized (QUEUE_LOCK) {
+            queue.serving--;
+            if (queue.serving == 0 && queue.pieces.isEmpty() && !queue.inRing) {
+                pending.remove(peer);
+            } else {
+                addToRing(peer, queue);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.networking.net;
+
+import com.networking.config.*;
+import com.networking.misc.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A single TCP stream to a peer, along with the packet framing used on it.
+ *
+ * Outgoing packets are queued as buffers and written with a single gathering
+ * write. Non-urgent packets may wait up to SendBatchWindow ms for company,
+ * until SendBatchBytes are queued or an urgent packet carries them out.
+ * Each connection flushes its own late batches, so a peer that is slow to
+ * read only ever holds up its own packets.
+ */
+public class Connection {
+    private final Socket socket;
+    private final GatheringByteChannel channel; // null for plain sockets
+    private final Object SOCKET_LOCK = new Object();
+    private final DataOutputStream dos;
+    private final DataInputStream dis;
+
+    private final ArrayList<ByteBuffer> pending = new ArrayList<ByteBuffer>(); // only touched with SOCKET_LOCK
+    private final ArrayList<Packet> pendingPackets = new ArrayList<Packet>(); // the same, for the wire trace
+    private int pendingBytes = 0;
+    private long flushAt; // only touched with SOCKET_LOCK
+    private Thread flusher = null; // started with the first batch
+
+    private int tracePeerID = -1; // who's on the other end, -1 to not trace
+    private int traceStream = 0;
+
+    public Connection(Socket socket) throws IOException {
+        this.socket = socket;
+        channel = socket.getChannel();
+        dos = new DataOutputStream(socket.getOutputStream());
+        dis = new DataInputStream(socket.getInputStream());
+    }
+
+    public DataOutputStream getOutputStream() {
+        return dos;
+    }
+
+    public DataInputStream getInputStream() {
+        return dis;
+    }
+
+    // packets on this connection get recorded to the wire trace, if it's on
+    public void traceAs(int peerID, int stream) {
+        tracePeerID = peerID;
+        traceStream = stream;
+    }
+
+    public void close() {
+        // closed first, that gets a flusher stuck writing out of SOCKET_LOCK
+        try {
+            socket.close();
+        } catch (IOException ex) { }
+        synchronized (SOCKET_LOCK) {
+            SOCKET_LOCK.notifyAll();
+        }
+    }
+
+    // this function blocks until it reads a full packet
+    // only gets called by the thread reading this connection
+    public Packet readPacket() {
+        try {
+            int payloadLength = dis.readInt();
+            byte type = dis.readByte();
+            byte[] payload = new byte[payloadLength];
+            dis.readFully(payload);
+            Packet p = new Packet(Packet.PacketType.values()[(int)type], payload);
+            trace(WireTrace.RECEIVED, p);
+            return p;
+        } catch (IOException ex) { return null; }
+    }
+
+    // this function sends a packet down the wire, or queues it for the
+    // next batch
+    // potentially can get called by different threads
+    public void sendPacket(Packet p) throws IOException {
+        synchronized (SOCKET_LOCK) {
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.putInt(p.getPayload().length);
+            header.put((byte) p.getPacketType().ordinal());
+            header.flip();
+            boolean startWindow = pending.isEmpty();
+            pending.add(header);
+            pending.add(ByteBuffer.wrap(p.getPayload()));
+            pendingBytes += header.remaining() + p.getPayload().length;
+            pendingPackets.add(p);
+            if (p.isUrgent() || CommonConfig.getSendBatchWindow() <= 0
+                    || pendingBytes >= CommonConfig.getSendBatchBytes()) {
+                flushPending();
+                return;
+            }
+            if (startWindow) scheduleFlush();
+        }
+    }
+
+    // only called with SOCKET_LOCK held
+    private void flushPending() throws IOException {
+        if (pending.isEmpty()) return;
+        ByteBuffer[] bufs = pending.toArray(new ByteBuffer[0]);
+        pending.clear();
+        pendingBytes = 0;
+        Packet[] sent = pendingPackets.toArray(new Packet[0]);
+        pendingPackets.clear();
+        if (channel != null) {
+            long left = 0;
+            for (ByteBuffer b : bufs) left += b.remaining();
+            while (left > 0) left -= channel.write(bufs);
+        } else {
+            // plain sockets don't have a channel, still flush once
+            for (ByteBuffer b : bufs) dos.write(b.array(), b.position(), b.remaining());
+            dos.flush();
+        }
+        // traced once they're handed to the kernel, not when they were queued
+        for (Packet p : sent) trace(WireTrace.SENT, p);
+    }
+
+    private void trace(byte direction, Packet p) {
+        if (tracePeerID == -1 || !WireTrace.INSTANCE.isEnabled()) return;
+        WireTrace.INSTANCE.record(tracePeerID, direction,
+                p.getPacketType().ordinal(), traceStream,
+                p.getPieceIndex(), p.getPayload().length);
+    }
+
+    // only called with SOCKET_LOCK held
+    private void scheduleFlush() {
+        flushAt = System.currentTimeMillis() + CommonConfig.getSendBatchWindow();
+        if (flusher == null) {
+            flusher = new Thread("Send Flusher Thread") {
+                public void run() {
+                    flushBatches();
+                }
+            };
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        SOCKET_LOCK.notify();
+    }
+
+    // only called by this connection's send flusher thread
+    private void flushBatches() {
+        synchronized (SOCKET_LOCK) {
+            try {
+                while (!socket.isClosed()) {
+                    long wait = flushAt - System.currentTimeMillis();
+                    if (pending.isEmpty()) {
+                        SOCKET_LOCK.wait();
+                    } else if (wait > 0) {
+                        SOCKET_LOCK.wait(wait);
+                    } else {
+                        flushPending();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException ex) {
+                // the reading side will notice the connection is gone
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.networking.net;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Copies bytes from one socket to another through an emulated Link. A
+ * reader thread stamps each chunk with the time it is due, and a writer
+ * thread hands it over once that time comes. The reader stops reading once
+ * the link holds as much as it can, so the sender feels the bandwidth cap
+ * through TCP instead of the relay buffering without bound.
+ */
+public class DelayPipe {
+    private static final int CHUNK_SIZE = 16384;
+
+    private final Socket from, to;
+    private final Link link;
+    private final LinkedBlockingQueue<Object[]> inFlight = new LinkedBlockingQueue<Object[]>();
+    private final Object QUEUED_LOCK = new Object();
+    private long queuedBytes = 0; // in inFlight, not written yet
+    private boolean writerDone = false; // nothing will drain inFlight anymore
+
+    public DelayPipe(Socket from, Socket to, Link link) {
+        this.from = from;
+        this.to = to;
+        this.link = link;
+    }
+
+    // initial holds bytes that were already read off of from, if any
+    public void start(final byte[] initial) {
+        new Thread("Delay Pipe Reader Thread") {
+            public void run() {
+                try {
+                    if (initial != null && initial.length > 0) enqueue(initial);
+                    InputStream in = from.getInputStream();
+                    byte[] buf = new byte[CHUNK_SIZE];
+                    int n;
+                    while ((n = in.read(buf)) != -1) {
+                        if (link.shouldReset(n)) {
+                            reset();
+                            break;
+                        }
+                        enqueue(Arrays.copyOf(buf, n));
+                    }
+                } catch (Exception ex) { }
+                try {
+                    inFlight.put(new Object[] {0L, null}); // end of stream
+                } catch (InterruptedException ex) { }
+            }
+        }.start();
+        new Thread("Delay Pipe Writer Thread") {
+            public void run() {
+                try {
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        Object[] chunk = inFlight.take();
+                        if (chunk[1] == null) break;
+                        long wait = (Long) chunk[0] - System.nanoTime();
+                        if (wait > 0) Thread.sleep(wait/1000000, (int) (wait%1000000));
+                        byte[] bytes = (byte[]) chunk[1];
+                        out.write(bytes);
+                        out.flush();
+                        synchronized (QUEUED_LOCK) {
+                            queuedBytes -= bytes.length;
+                            QUEUED_LOCK.notify();
+                        }
+                    }
+                    to.shutdownOutput();
+                } catch (Exception ex) { }
+                synchronized (QUEUED_LOCK) {
+                    writerDone = true;
+                    QUEUED_LOCK.notify();
+                }
+            }
+        }.start();
+    }
+
+    // only called by the reader thread, blocks while the link is full
+    private void enqueue(byte[] chunk) throws InterruptedException, IOException {
+        synchronized (QUEUED_LOCK) {
+            // a chunk always fits into an empty link
+            while (!writerDone && queuedBytes > 0 && queuedBytes + chunk.length > link.getQueueLimit()) {
+                QUEUED_LOCK.wait();
+            }
+            if (writerDone) throw new IOException("Nothing is writing to the other side");
+            queuedBytes += chunk.length;
+        }
+        inFlight.put(new Object[] {link.schedule(chunk.length), chunk});
+    }
+
+    // drops the connection on both ends with a RST instead of a FIN
+    private void reset() {
+        for (Socket s : new Socket[] {from, to}) {
+            try {
+                s.setSoLinger(true, 0);
+                s.close();
+            } catch (IOException ex) { }
+        }
+    }
+}
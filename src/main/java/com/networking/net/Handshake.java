@@ -0,0 +1,66 @@
+package com.networking.net;
+
+import java.io.*;
+import java.nio.charset.*;
+
+/**
+ * The handshake both sides send when a connection is opened. The last of
+ * the blank bytes carries feature bits; old peers leave it zero, so a
+ * feature is only used when both sides set its bit.
+ */
+public class Handshake {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String HANDSHAKE_HEADER_STR = "P2PFILESHARINGPROJ";
+    private static final byte[] HANDSHAKE_HEADER_BYTES =
+            HANDSHAKE_HEADER_STR.getBytes(ASCII);
+    private static final int BLANK_BYTE_LENGTH = 10;
+    private static final int FEATURE_BYTE_IDX = BLANK_BYTE_LENGTH-1;
+    public static final int LENGTH = HANDSHAKE_HEADER_BYTES.length + BLANK_BYTE_LENGTH + 4;
+
+    public static final byte FEATURE_FAST_HAVE = 0x01; // HAVE_MULTI, HAVE_ALL, HAVE_NONE
+    public static final byte FEATURE_STREAMS = 0x02; // can take extra data streams
+    public static final byte FEATURE_ATTACH = 0x04; // this is an extra data stream
+
+    private final int peerID;
+    private final byte features;
+
+    private Handshake(int peerID, byte features) {
+        this.peerID = peerID;
+        this.features = features;
+    }
+
+    public int getPeerID() {
+        return peerID;
+    }
+
+    public boolean hasFeature(byte feature) {
+        return (features & feature) != 0;
+    }
+
+    // pulls the sender's id out of a raw handshake, without checking it
+    public static int peekPeerID(byte[] handshakeBytes) {
+        return Packet.deserializeInt(handshakeBytes, LENGTH-4);
+    }
+
+    // writes our handshake, then blocks until we read theirs
+    public static Handshake exchange(Connection conn, int ourID, byte ourFeatures) throws IOException {
+        DataOutputStream dos = conn.getOutputStream();
+        DataInputStream dis = conn.getInputStream();
+        // write handshake
+        dos.write(HANDSHAKE_HEADER_BYTES, 0, HANDSHAKE_HEADER_BYTES.length);
+        for (int i = 0; i < BLANK_BYTE_LENGTH; i++) {
+            dos.writeByte(i == FEATURE_BYTE_IDX ? ourFeatures : 0x0);
+        }
+        dos.writeInt(ourID);
+        dos.flush(); // flush stream
+        // read handshake
+        byte[] headerBytes = new byte[HANDSHAKE_HEADER_BYTES.length];
+        dis.readFully(headerBytes);
+        String header = new String(headerBytes, ASCII);
+        if (!header.equals(HANDSHAKE_HEADER_STR))
+            throw new RuntimeException("Invalid peer handshake, got <" + header + ">");
+        byte[] blankBytes = new byte[BLANK_BYTE_LENGTH];
+        dis.readFully(blankBytes);
+        return new Handshake(dis.readInt(), blankBytes[FEATURE_BYTE_IDX]);
+    }
+}
@@ -0,0 +1,91 @@
+package com.networking.net;
+
+import java.util.*;
+
+/**
+ * One direction of an emulated network link. Every stream going the same
+ * way between the same two peers shares it, so they also share its
+ * bandwidth. Jitter and resets are drawn from a seeded Random once per
+ * BLOCK_SIZE bytes sent through the link, so where they land depends only
+ * on the bytes and not on how the reads happened to be chunked.
+ */
+public class Link {
+    private static final int BLOCK_SIZE = 16384;
+    private static final long QUEUE_BYTES = 64*1024; // router buffer on top of the BDP
+    private static final long UNCAPPED_BYTES = 4*1024*1024; // how much an uncapped link holds
+
+    private final long delayNanos, jitterNanos;
+    private final long bytesPerSec; // 0 means uncapped
+    private final double resetPerByte;
+    private final Random rand;
+
+    private final Object LINK_LOCK = new Object(); // lock for everything below
+    private long freeAt = 0; // when the link is done sending what it has queued
+    private long lastDue = 0; // when the last chunk gets delivered
+    private long offset = 0; // bytes sent through the link so far
+    private long firstBlock = 0; // block the first entry of draws is for
+    private final ArrayList<double[]> draws = new ArrayList<double[]>(); // {jitter, reset} per block
+
+    public Link(int delayMs, int jitterMs, long bytesPerSec, double resetPerMB, long seed) {
+        this.delayNanos = 1000000L*delayMs;
+        this.jitterNanos = 1000000L*jitterMs;
+        this.bytesPerSec = bytesPerSec;
+        this.resetPerByte = resetPerMB/(1024*1024);
+        this.rand = new Random(seed);
+    }
+
+    // how many bytes can be in flight on the link before the sender has to
+    // wait: what fits in the pipe during one delay, plus a small buffer
+    public long getQueueLimit() {
+        if (bytesPerSec <= 0) return UNCAPPED_BYTES;
+        return bytesPerSec*(delayNanos+jitterNanos)/1000000000L + QUEUE_BYTES;
+    }
+
+    // when a chunk of len bytes handed over now should come out the other end
+    public long schedule(int len) {
+        synchronized (LINK_LOCK) {
+            long now = System.nanoTime();
+            // wait for the link to be free, then put the bytes on the wire
+            long start = Math.max(now, freeAt);
+            freeAt = bytesPerSec > 0 ? start + 1000000000L*len/bytesPerSec : start;
+            // the chunk is there once its last byte is
+            offset += len;
+            long jitter = jitterNanos > 0
+                    ? (long) ((2*draw((offset-1)/BLOCK_SIZE)[0]-1)*jitterNanos) : 0;
+            long due = freeAt + Math.max(0, delayNanos + jitter);
+            // jitter can't reorder bytes inside of a TCP stream
+            due = Math.max(due, lastDue);
+            lastDue = due;
+            return due;
+        }
+    }
+
+    // whether the connection should be reset instead of sending the next
+    // len bytes. a block can only reset the link at its first byte, so
+    // every block gets exactly one chance
+    public boolean shouldReset(int len) {
+        if (resetPerByte <= 0) return false;
+        synchronized (LINK_LOCK) {
+            long block = (offset + BLOCK_SIZE-1)/BLOCK_SIZE; // first block starting at or after offset
+            for (; block*BLOCK_SIZE < offset+len; block++) {
+                if (draw(block)[1] < resetPerByte*BLOCK_SIZE) return true;
+            }
+            return false;
+        }
+    }
+
+    // only called with LINK_LOCK held. every block gets its draws in
+    // order, and nothing asks about blocks before the one holding the last
+    // byte sent, so those get dropped
+    private double[] draw(long block) {
+        long past = offset > 0 ? (offset-1)/BLOCK_SIZE : 0;
+        while (firstBlock < past && !draws.isEmpty()) {
+            draws.remove(0);
+            firstBlock++;
+        }
+        while (firstBlock + draws.size() <= block) {
+            draws.add(new double[] {rand.nextDouble(), rand.nextDouble()});
+        }
+        return draws.get((int) (block-firstBlock));
+    }
+}
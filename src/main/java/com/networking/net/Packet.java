@@ -1,5 +1,7 @@
 package com.networking.net;
 
+import java.util.*;
+
 /**
  * A packet being sent or received over the net.
  * TODO: make a PacketBuilder instead of "mergePayloads".
@@ -14,7 +16,11 @@ public class Packet {
         HAVE,
         BITFIELD,
         REQUEST,
-        PIECE
+        PIECE,
+        // only sent when both sides set Handshake.FEATURE_FAST_HAVE
+        HAVE_MULTI, // payload is any number of piece indices
+        HAVE_ALL,
+        HAVE_NONE
     }
 
     private final PacketType packetType;
@@ -33,6 +39,34 @@ public class Packet {
         return payload;
     }
 
+    // the piece a HAVE, REQUEST or PIECE is about, -1 for anything else
+    public int getPieceIndex() {
+        switch (packetType) {
+            case HAVE:
+            case REQUEST:
+            case PIECE:
+                if (payload.length >= 4) return deserializeInt(payload);
+                return -1;
+            default:
+                return -1;
+        }
+    }
+
+    // urgent packets hold up the other side, so they never wait in a send
+    // batch. HAVEs and interest changes can
+    public boolean isUrgent() {
+        switch (packetType) {
+            case HAVE:
+            case HAVE_MULTI:
+            case HAVE_NONE:
+            case INTERESTED:
+            case NOT_INTERESTED:
+                return false;
+            default:
+                return true;
+        }
+    }
+
     public static byte[] mergePayloads(byte[] p1, byte[] p2) {
         byte[] merged = new byte[p1.length+p2.length];
         for (int i = 0; i < p1.length; i++) {
@@ -53,11 +87,24 @@ public class Packet {
         return bytes;
     }
 
+    public static byte[] serializeInts(List<Integer> vs) {
+        byte[] bytes = new byte[4*vs.size()];
+        for (int i = 0; i < vs.size(); i++) {
+            byte[] v = serializeInt(vs.get(i));
+            System.arraycopy(v, 0, bytes, 4*i, 4);
+        }
+        return bytes;
+    }
+
     public static int deserializeInt(byte[] bytes) {
-        int ch1 = (int) (bytes[0] & 0xFF); // 0xFF converts UNSIGNED byte to int
-        int ch2 = (int) (bytes[1] & 0xFF);
-        int ch3 = (int) (bytes[2] & 0xFF);
-        int ch4 = (int) (bytes[3] & 0xFF);
+        return deserializeInt(bytes, 0);
+    }
+
+    public static int deserializeInt(byte[] bytes, int offset) {
+        int ch1 = (int) (bytes[offset] & 0xFF); // 0xFF converts UNSIGNED byte to int
+        int ch2 = (int) (bytes[offset+1] & 0xFF);
+        int ch3 = (int) (bytes[offset+2] & 0xFF);
+        int ch4 = (int) (bytes[offset+3] & 0xFF);
         return ((ch1 << 24) + (ch2 << 16) + (ch3 << 8) + (ch4 << 0));
     }
 }
@@ -0,0 +1,77 @@
+package com.networking.net;
+
+import com.networking.*;
+import com.networking.config.*;
+import com.networking.misc.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * Sits between the peers in PeerInfo.cfg and emulates the network described
+ * in NetworkProfile.cfg. For every peer it listens on port+RelayPortOffset
+ * and forwards to the peer's real port. The connecting peer is identified
+ * from its handshake, so each direction of each pair of peers gets its own
+ * Link with its own delay, bandwidth cap and resets.
+ */
+public class Relay implements Runnable {
+    private final HashMap<String, Link> links = new HashMap<String, Link>();
+
+    @Override
+    public void run() {
+        int offset = CommonConfig.getRelayPortOffset();
+        if (offset == 0) {
+            Logger.INSTANCE.println("RelayPortOffset isn't set in Common.cfg, terminating.");
+            System.exit(1);
+        }
+        for (final PeerConfig cfg : PeerConfig.PEER_CONFIGS) {
+            try {
+                final ServerSocket server = new ServerSocket(cfg.getPort() + offset);
+                Logger.INSTANCE.println("Relaying port <" + server.getLocalPort() + "> to Peer <" + cfg.getPeerID() + "> on port <" + cfg.getPort() + ">");
+                new Thread("Relay Thread " + cfg.getPeerID()) {
+                    public void run() {
+                        while (true) {
+                            try {
+                                relay(server.accept(), cfg);
+                            } catch (IOException ex) {
+                                Logger.INSTANCE.println("Error relaying to Peer <" + cfg.getPeerID() + ">: " + ex);
+                            }
+                        }
+                    }
+                }.start();
+            } catch (IOException ex) {
+                Logger.INSTANCE.println("Error listening for Peer <" + cfg.getPeerID() + ">, terminating.");
+                Bootstrap.stackExit(ex);
+            }
+        }
+    }
+
+    private void relay(Socket down, PeerConfig target) throws IOException {
+        // the connecting peer's handshake tells us who it is
+        byte[] handshake = new byte[Handshake.LENGTH];
+        new DataInputStream(down.getInputStream()).readFully(handshake);
+        int fromID = Handshake.peekPeerID(handshake);
+        Socket up = new Socket(target.getHost(), target.getPort());
+        up.setTcpNoDelay(true); // the links do their own batching
+        down.setTcpNoDelay(true);
+        Logger.INSTANCE.println("Relaying Peer <" + fromID + "> to Peer <" + target.getPeerID() + ">");
+        new DelayPipe(down, up, getLink(fromID, target.getPeerID())).start(handshake);
+        new DelayPipe(up, down, getLink(target.getPeerID(), fromID)).start(null);
+    }
+
+    private synchronized Link getLink(int fromID, int toID) {
+        String key = fromID + "->" + toID;
+        Link link = links.get(key);
+        if (link == null) {
+            LinkConfig cfg = LinkConfig.find(fromID, toID);
+            // every direction gets its own seed, so the profile is
+            // reproducible no matter what order peers connect in
+            long seed = LinkConfig.getSeed()*31*31 + fromID*31 + toID;
+            link = new Link(cfg.getDelay(), cfg.getJitter(),
+                    1000L*cfg.getKbitPerSec()/8, cfg.getResetPerMB(), seed);
+            links.put(key, link);
+        }
+        return link;
+    }
+}
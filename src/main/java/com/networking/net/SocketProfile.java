@@ -0,0 +1,50 @@
+package com.networking.net;
+
+import com.networking.config.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * Applies the socket options profile from Common.cfg. Buffer sizes of 0
+ * leave the OS defaults alone. Options have to be applied before
+ * connecting (or binding) so the TCP window scale is negotiated with the
+ * larger buffers in mind. Both ends of a stream need them: dialed sockets
+ * get them in connect(), accepted ones through apply().
+ *
+ * Sockets are opened through channels so a Connection can hand a whole
+ * batch of packets to the kernel in one gathering write.
+ */
+public class SocketProfile {
+
+    private SocketProfile() { }
+
+    public static Socket connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        apply(channel.socket());
+        channel.connect(new InetSocketAddress(host, port));
+        return channel.socket();
+    }
+
+    public static ServerSocket listen(int port) throws IOException {
+        ServerSocket server = ServerSocketChannel.open().socket(); // accept() gives channel sockets
+        // accepted sockets inherit this
+        if (CommonConfig.getReceiveBufferSize() > 0) {
+            server.setReceiveBufferSize(CommonConfig.getReceiveBufferSize());
+        }
+        server.bind(new InetSocketAddress(port));
+        return server;
+    }
+
+    public static void apply(Socket socket) throws IOException {
+        socket.setTcpNoDelay(CommonConfig.getTcpNoDelay());
+        socket.setKeepAlive(CommonConfig.getKeepAlive());
+        if (CommonConfig.getSendBufferSize() > 0) {
+            socket.setSendBufferSize(CommonConfig.getSendBufferSize());
+        }
+        if (CommonConfig.getReceiveBufferSize() > 0) {
+            socket.setReceiveBufferSize(CommonConfig.getReceiveBufferSize());
+        }
+    }
+}
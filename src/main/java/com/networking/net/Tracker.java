@@ -0,0 +1,165 @@
+package com.networking.net;
+
+import com.networking.*;
+import com.networking.config.*;
+import com.networking.misc.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * A stand-in for a BitTorrent tracker, so peers can join and leave while
+ * the swarm is running. It keeps the list of live peers and hands it out to
+ * anyone who announces; a peer that hasn't announced for a few intervals is
+ * taken off the list. Each request is served on its own thread, so one
+ * slow client can't hold up everyone else's announces.
+ *
+ * Every request is one line on its own connection, and the reply is the
+ * list of live peers, one "id host port" per line, followed by "END":
+ *   ANNOUNCE id host port
+ *   LEAVE id
+ */
+public class Tracker implements Runnable {
+    private static final String ANNOUNCE = "ANNOUNCE";
+    private static final String LEAVE = "LEAVE";
+    private static final String END = "END";
+    private static final int EXPIRE_INTERVALS = 5; // missed announces before a peer is dropped
+    private static final int SO_TIMEOUT = 1000; // well under the expiry window
+
+    private static class Member {
+        final String host;
+        final int port;
+        long lastSeen;
+
+        Member(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    private final Object MEMBERS_LOCK = new Object();
+    private final TreeMap<Integer, Member> members = new TreeMap<Integer, Member>();
+
+    @Override
+    public void run() {
+        if (CommonConfig.getTrackerPort() == 0) {
+            Logger.INSTANCE.println("TrackerPort isn't set in Common.cfg, terminating.");
+            System.exit(1);
+        }
+        ServerSocket server = null;
+        try {
+            server = new ServerSocket(CommonConfig.getTrackerPort());
+        } catch (IOException ex) {
+            Logger.INSTANCE.println("Error listening on port <" + CommonConfig.getTrackerPort() + ">, terminating.");
+            Bootstrap.stackExit(ex);
+        }
+        Logger.INSTANCE.println("Tracking the swarm on port <" + server.getLocalPort() + ">");
+        while (true) {
+            final Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException ex) {
+                Logger.INSTANCE.println("Error accepting a tracker request: " + ex);
+                continue;
+            }
+            new Thread("Tracker Request Thread") {
+                public void run() {
+                    serve(socket);
+                }
+            }.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            handle(socket);
+        } catch (IOException ex) {
+            Logger.INSTANCE.println("Error answering a tracker request: " + ex);
+        } catch (RuntimeException ex) {
+            Logger.INSTANCE.println("Ignoring a bad tracker request: " + ex);
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) { }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+        String line = in.readLine();
+        if (line == null) return;
+        String[] spl = line.trim().split("\\s+");
+        int id = Integer.parseInt(spl[1]);
+        StringBuilder reply = new StringBuilder();
+        synchronized (MEMBERS_LOCK) {
+            long now = System.currentTimeMillis();
+            if (spl[0].equals(ANNOUNCE)) {
+                Member m = members.get(id);
+                if (m == null) {
+                    m = new Member(spl[2], Integer.parseInt(spl[3]));
+                    members.put(id, m);
+                    Logger.INSTANCE.println("Peer <" + id + "> joined the swarm at " + m.host + ":" + m.port + ".");
+                }
+                m.lastSeen = now;
+            } else if (spl[0].equals(LEAVE)) {
+                if (members.remove(id) != null) {
+                    Logger.INSTANCE.println("Peer <" + id + "> left the swarm.");
+                }
+            }
+            expire(now);
+            for (Map.Entry<Integer, Member> ent : members.entrySet()) {
+                reply.append(ent.getKey() + " " + ent.getValue().host + " " + ent.getValue().port + "\n");
+            }
+        }
+        reply.append(END + "\n");
+        // written outside the lock, a slow reader only holds up itself
+        OutputStream out = socket.getOutputStream();
+        out.write(reply.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    // only called with MEMBERS_LOCK held
+    private void expire(long now) {
+        Iterator<Map.Entry<Integer, Member>> it = members.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Member> ent = it.next();
+            if (now - ent.getValue().lastSeen > EXPIRE_INTERVALS*CommonConfig.getAnnounceInterval()) {
+                it.remove();
+                Logger.INSTANCE.println("Peer <" + ent.getKey() + "> timed out of the swarm.");
+            }
+        }
+    }
+
+    // tells the tracker we're here, and gets back everyone who is
+    public static List<PeerConfig> announce(PeerConfig self) throws IOException {
+        return request(ANNOUNCE + " " + self.getPeerID() + " " + self.getHost() + " " + self.getPort());
+    }
+
+    public static List<PeerConfig> leave(PeerConfig self) throws IOException {
+        return request(LEAVE + " " + self.getPeerID());
+    }
+
+    private static List<PeerConfig> request(String line) throws IOException {
+        ArrayList<PeerConfig> live = new ArrayList<PeerConfig>();
+        Socket socket = new Socket(CommonConfig.getTrackerHost(), CommonConfig.getTrackerPort());
+        try {
+            socket.setSoTimeout(SO_TIMEOUT);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            out.println(line);
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            String reply;
+            while ((reply = in.readLine()) != null && !reply.equals(END)) {
+                String[] spl = reply.split(" ");
+                // nobody but PeerInfo.cfg knows who started with the file,
+                // and peers only need that about themselves
+                live.add(new PeerConfig(Integer.parseInt(spl[0]), spl[1], Integer.parseInt(spl[2]), false));
+            }
+        } finally {
+            socket.close();
+        }
+        return live;
+    }
+}